@@ -0,0 +1,163 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Direct buffers shared by the storage read and write paths, in a few size classes.
+ * Allocating a buffer per copy churns the young generation, and reading into heap arrays makes the JDK
+ * copy through a temporary direct buffer as large as the read, which it then caches per thread.
+ * Pooled buffers are allocated on demand and kept until the pool reaches its ceiling. Beyond that,
+ * requests get plain heap buffers that are not kept, so the pool never holds more native memory than configured.
+ */
+@Component
+public class BufferPool {
+	private static final int[] SIZE_CLASSES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+	private final long maxPooledBytes;
+	private final List<Queue<ByteBuffer>> free = new ArrayList<>(SIZE_CLASSES.length);
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong outstanding = new AtomicLong();
+
+	// Pool with the default ceiling, used by tests and when LocalStorageService is built by hand
+	public BufferPool() {
+		this(64 * 1024 * 1024);
+	}
+
+	@Autowired
+	public BufferPool(@Value("${pdfmerger.buffers.max-pooled:64MB}") DataSize maxPooled) {
+		this(maxPooled.toBytes());
+	}
+
+	public BufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			free.add(new ConcurrentLinkedQueue<>());
+		}
+	}
+
+	// Returns a cleared buffer of the smallest size class holding minCapacity bytes, or of the largest one
+	public PooledBuffer acquire(int minCapacity) {
+		int sizeClass = 0;
+		while (sizeClass < SIZE_CLASSES.length - 1 && SIZE_CLASSES[sizeClass] < minCapacity) {
+			sizeClass++;
+		}
+		int size = SIZE_CLASSES[sizeClass];
+		outstanding.incrementAndGet();
+
+		ByteBuffer buffer = free.get(sizeClass).poll();
+		if (buffer != null) {
+			hits.incrementAndGet();
+			buffer.clear();
+			return new PooledBuffer(buffer, sizeClass);
+		}
+		misses.incrementAndGet();
+		long pooled;
+		do {
+			pooled = pooledBytes.get();
+			if (pooled + size > maxPooledBytes) {
+				return new PooledBuffer(ByteBuffer.allocate(size), -1); // over the ceiling, not kept
+			}
+		} while (!pooledBytes.compareAndSet(pooled, pooled + size));
+		return new PooledBuffer(ByteBuffer.allocateDirect(size), sizeClass);
+	}
+
+	private void release(PooledBuffer pooled) {
+		outstanding.decrementAndGet();
+		if (pooled.sizeClass >= 0) {
+			free.get(pooled.sizeClass).offer(pooled.buffer);
+		}
+	}
+
+	public Stats getStats() {
+		return new Stats(hits.get(), misses.get(), outstanding.get(), pooledBytes.get());
+	}
+
+	// A buffer taken from the pool. Closing it more than once is harmless.
+	public final class PooledBuffer implements AutoCloseable {
+		private final ByteBuffer buffer;
+		private final int sizeClass; // -1 for buffers that are not kept
+		private boolean released;
+
+		private PooledBuffer(ByteBuffer buffer, int sizeClass) {
+			this.buffer = buffer;
+			this.sizeClass = sizeClass;
+		}
+
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			release(this);
+		}
+	}
+
+	public static final class Stats {
+		private final long hits;
+		private final long misses;
+		private final long outstanding;
+		private final long pooledBytes;
+
+		Stats(long hits, long misses, long outstanding, long pooledBytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.outstanding = outstanding;
+			this.pooledBytes = pooledBytes;
+		}
+
+		// Buffers served from the pool
+		public long getHits() {
+			return hits;
+		}
+
+		// Buffers that had to be allocated, direct while under the ceiling and on the heap beyond it
+		public long getMisses() {
+			return misses;
+		}
+
+		// Buffers acquired and not released yet
+		public long getOutstanding() {
+			return outstanding;
+		}
+
+		// Direct memory allocated by the pool, which it never gives back
+		public long getPooledBytes() {
+			return pooledBytes;
+		}
+	}
+}
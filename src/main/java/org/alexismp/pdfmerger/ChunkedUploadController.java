@@ -0,0 +1,126 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Chunked uploads for files beyond the multipart size limit, following the tus 1.0 headers:
+ * POST /pdfmerger/uploads creates an upload (Upload-Length, Upload-Metadata with "filename" and optionally
+ * "session" to add the file to an existing merge session, Upload-Checksum for the whole file),
+ * PATCH sends a chunk at Upload-Offset and HEAD tells where to resume from.
+ * Once all files are uploaded, POST /pdfmerger/sessions/{session} merges them.
+ */
+@Controller
+public class ChunkedUploadController {
+	static final String TUS_RESUMABLE = "Tus-Resumable";
+	static final String TUS_VERSION = "1.0.0";
+	static final String UPLOAD_LENGTH = "Upload-Length";
+	static final String UPLOAD_OFFSET = "Upload-Offset";
+	static final String UPLOAD_METADATA = "Upload-Metadata";
+	static final String UPLOAD_CHECKSUM = "Upload-Checksum";
+	static final String UPLOAD_SESSION = "Upload-Session";
+
+	private final ChunkedUploadService uploadService;
+
+	@Autowired
+	public ChunkedUploadController(final ChunkedUploadService uploadService) {
+		this.uploadService = uploadService;
+	}
+
+	@PostMapping(value = "/pdfmerger/uploads")
+	public ResponseEntity<Void> createUpload(@RequestHeader(UPLOAD_LENGTH) final long length,
+			@RequestHeader(UPLOAD_METADATA) final String metadata,
+			@RequestHeader(value = UPLOAD_CHECKSUM, required = false) final String checksum,
+			final UriComponentsBuilder uriBuilder) {
+		Map<String, String> values = parseMetadata(metadata);
+		String session = values.containsKey("session") ? checkSession(values.get("session")) : UUID.randomUUID().toString();
+		ChunkedUploadService.ChunkedUpload upload = uploadService.create(session, values.get("filename"), length, checksum);
+
+		HttpHeaders headers = headers(upload);
+		headers.setLocation(uriBuilder.path("/pdfmerger/uploads/{id}").buildAndExpand(upload.getId()).toUri());
+		return new ResponseEntity<>(headers, HttpStatus.CREATED);
+	}
+
+	@RequestMapping(value = "/pdfmerger/uploads/{uploadId}", method = RequestMethod.HEAD)
+	public ResponseEntity<Void> getOffset(@PathVariable final String uploadId) {
+		HttpHeaders headers = headers(uploadService.get(uploadId));
+		headers.setCacheControl("no-store");
+		return new ResponseEntity<>(headers, HttpStatus.OK);
+	}
+
+	@PatchMapping(value = "/pdfmerger/uploads/{uploadId}", consumes = "application/offset+octet-stream")
+	public ResponseEntity<Void> appendChunk(@PathVariable final String uploadId,
+			@RequestHeader(UPLOAD_OFFSET) final long offset, final HttpServletRequest request) throws IOException {
+		ChunkedUploadService.ChunkedUpload upload = uploadService.append(uploadId, offset, request.getInputStream());
+		return new ResponseEntity<>(headers(upload), HttpStatus.NO_CONTENT);
+	}
+
+	private static HttpHeaders headers(ChunkedUploadService.ChunkedUpload upload) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add(TUS_RESUMABLE, TUS_VERSION);
+		headers.add(UPLOAD_OFFSET, Long.toString(upload.getOffset()));
+		headers.add(UPLOAD_LENGTH, Long.toString(upload.getLength()));
+		headers.add(UPLOAD_SESSION, upload.getIdPrefix());
+		return headers;
+	}
+
+	// "key base64value,key2 base64value2" as defined by tus
+	private static Map<String, String> parseMetadata(String metadata) {
+		Map<String, String> values = new HashMap<>();
+		for (String pair : metadata.split(",")) {
+			String[] keyValue = pair.trim().split(" ", 2);
+			try {
+				String value = keyValue.length == 2 ? new String(Base64.getDecoder().decode(keyValue[1]), StandardCharsets.UTF_8) : "";
+				values.put(keyValue[0], value);
+			} catch (IllegalArgumentException e) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid " + UPLOAD_METADATA + " value for " + keyValue[0], e);
+			}
+		}
+		return values;
+	}
+
+	// Sessions are directories named after the id, only accept the UUIDs the server hands out
+	static String checkSession(String session) {
+		try {
+			return UUID.fromString(session).toString();
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid session " + session, e);
+		}
+	}
+}
@@ -0,0 +1,453 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Resumable uploads, sent as a sequence of chunks in the style of the tus protocol.
+ * Each upload is a ".part" file written at the offsets given by the client and a ".properties" file
+ * describing it. Both live on disk, so the offset to resume from is simply the size of the ".part" file,
+ * even after a restart or on another instance sharing the storage location.
+ * Chunks are copied through a fixed-size buffer: memory use doesn't depend on the size of the file.
+ * Once the last chunk has been written the checksum is verified and the file is added to its merge session,
+ * which is marked with a ".session" file until it is claimed for merging.
+ * Uploads that receive no chunk for expireAfterMillis are deleted, with their session if nothing else is
+ * being uploaded to it, and so are sessions whose files are all in but that nobody merges within that
+ * time, so that clients giving up half-way don't leave their files on disk for good.
+ */
+@Service
+public class ChunkedUploadService {
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedUploadService.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+
+	private final Path uploadLocation;
+	private final StorageService storageService;
+	private final long maxChunkSize;
+	private final long maxLength;
+	private final long expireAfterMillis;
+	private final BufferPool bufferPool;
+
+	@Autowired
+	public ChunkedUploadService(@Value("${pdfmerger.storage.location:./tmp}") String location, StorageService storageService,
+			@Value("${pdfmerger.upload.max-chunk-size:8MB}") DataSize maxChunkSize,
+			@Value("${pdfmerger.upload.max-length:1GB}") DataSize maxLength,
+			@Value("${pdfmerger.upload.expire-after-minutes:60}") long expireAfterMinutes, BufferPool bufferPool) {
+		this(Paths.get(location).resolve("uploads"), storageService, maxChunkSize.toBytes(), maxLength.toBytes(),
+				TimeUnit.MINUTES.toMillis(expireAfterMinutes), bufferPool);
+	}
+
+	public ChunkedUploadService(Path uploadLocation, StorageService storageService, long maxChunkSize) {
+		this(uploadLocation, storageService, maxChunkSize, TimeUnit.HOURS.toMillis(1));
+	}
+
+	public ChunkedUploadService(Path uploadLocation, StorageService storageService, long maxChunkSize, long expireAfterMillis) {
+		this(uploadLocation, storageService, maxChunkSize, Long.MAX_VALUE, expireAfterMillis, new BufferPool());
+	}
+
+	public ChunkedUploadService(Path uploadLocation, StorageService storageService, long maxChunkSize, long maxLength,
+			long expireAfterMillis, BufferPool bufferPool) {
+		this.uploadLocation = uploadLocation;
+		this.storageService = storageService;
+		this.maxChunkSize = maxChunkSize;
+		this.maxLength = maxLength;
+		this.expireAfterMillis = expireAfterMillis;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Starts a new upload for the given session.
+	 * checksum is optional, in the tus format "sha256 <base64 digest>", and checked once the upload is complete.
+	 */
+	public ChunkedUpload create(String idPrefix, String filename, long length, String checksum) {
+		if (length <= 0) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, "Upload length must be positive: " + length, null);
+		}
+		if (length > maxLength) {
+			logAndThrowException(HttpStatus.PAYLOAD_TOO_LARGE, "Uploads are limited to " + maxLength + " bytes", null);
+		}
+		if (filename == null || !filename.endsWith(".pdf") || filename.contains("..") || filename.contains("/")) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, filename + " doesn't seem to be a PDF file name.", null);
+		}
+		if (checksum != null) {
+			parseChecksum(checksum); // fail early rather than after the whole file has been sent
+		}
+		ChunkedUpload upload = new ChunkedUpload(UUID.randomUUID().toString(), idPrefix, filename, length, checksum, 0);
+		Properties properties = new Properties();
+		properties.setProperty("session", idPrefix);
+		properties.setProperty("filename", filename);
+		properties.setProperty("length", Long.toString(length));
+		if (checksum != null) {
+			properties.setProperty("checksum", checksum);
+		}
+		try {
+			Files.createDirectories(uploadLocation);
+			Files.createFile(partFile(upload.getId()));
+			try (OutputStream out = Files.newOutputStream(propertiesFile(upload.getId()))) {
+				properties.store(out, null);
+			}
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create upload for " + filename, e);
+		}
+		return upload;
+	}
+
+	public ChunkedUpload get(String uploadId) {
+		Path propertiesFile = propertiesFile(uploadId);
+		Properties properties = new Properties();
+		try (Reader in = Files.newBufferedReader(propertiesFile, StandardCharsets.ISO_8859_1)) {
+			properties.load(in);
+			return new ChunkedUpload(uploadId, properties.getProperty("session"), properties.getProperty("filename"),
+					Long.parseLong(properties.getProperty("length")), properties.getProperty("checksum"),
+					Files.size(partFile(uploadId)));
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.NOT_FOUND, "No upload in progress with id " + uploadId, e);
+			throw new IllegalStateException("logAndThrowException failed to throw for NOT_FOUND.");
+		}
+	}
+
+	/**
+	 * Writes a chunk at the given offset, which must be where the previous chunk ended.
+	 * Completes the upload when its last byte has been written.
+	 */
+	public ChunkedUpload append(String uploadId, long offset, InputStream chunk) {
+		ChunkedUpload upload = get(uploadId);
+		long position = offset;
+		try (FileChannel channel = FileChannel.open(partFile(uploadId), StandardOpenOption.WRITE)) {
+			FileLock lock = tryLock(channel);
+			if (lock == null) {
+				logAndThrowException(HttpStatus.CONFLICT, "Upload " + uploadId + " is already receiving a chunk", null);
+			}
+			// the offset is checked and the upload completed under the lock, so that two requests sending
+			// the last chunk can't both add the file to the session
+			try {
+				if (!Files.exists(propertiesFile(uploadId))) {
+					// completed or expired while this request was waiting for the lock
+					logAndThrowException(HttpStatus.NOT_FOUND, "No upload in progress with id " + uploadId, null);
+				}
+				if (offset != channel.size()) {
+					logAndThrowException(HttpStatus.CONFLICT,
+							"Chunk offset " + offset + " doesn't match the uploaded size " + channel.size(), null);
+				}
+				position = write(upload, offset, chunk, channel);
+				if (position == upload.getLength()) {
+					complete(upload.withOffset(position));
+				}
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			// whatever was written before the failure stays, the client resumes from the current size
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to write chunk of upload " + uploadId, e);
+		}
+		return upload.withOffset(position);
+	}
+
+	// Copies chunk to channel from offset on, returns where the chunk ended
+	private long write(ChunkedUpload upload, long offset, InputStream chunk, FileChannel channel) throws IOException {
+		long position = offset;
+		// not closed, that would close the request's stream
+		ReadableByteChannel source = Channels.newChannel(chunk);
+		try (BufferPool.PooledBuffer pooled = bufferPool.acquire(BUFFER_SIZE)) {
+			ByteBuffer buffer = pooled.buffer();
+			while (source.read(buffer) != -1) {
+				buffer.flip();
+				if (position + buffer.remaining() > upload.getLength()) {
+					channel.truncate(offset);
+					logAndThrowException(HttpStatus.BAD_REQUEST, "Chunk goes beyond the upload length " + upload.getLength(), null);
+				}
+				if (position + buffer.remaining() - offset > maxChunkSize) {
+					channel.truncate(offset);
+					logAndThrowException(HttpStatus.PAYLOAD_TOO_LARGE, "Chunks are limited to " + maxChunkSize + " bytes", null);
+				}
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+				buffer.clear();
+			}
+		}
+		return position;
+	}
+
+	private void complete(ChunkedUpload upload) {
+		Path part = partFile(upload.getId());
+		try {
+			if (upload.getChecksum() != null && !Arrays.equals(parseChecksum(upload.getChecksum()), sha256(part))) {
+				discard(upload.getId());
+				logAndThrowException(HttpStatus.BAD_REQUEST, "Checksum mismatch for " + upload.getFilename(), null);
+			}
+			storageService.storePDF(part, upload.getFilename(), upload.getIdPrefix());
+			// touched on every completed upload, the session expires expireAfterMillis after the last one
+			Files.write(sessionFile(upload.getIdPrefix()), new byte[0]);
+			discard(upload.getId());
+			logger.debug("Completed upload {} of {} bytes", upload.getId(), upload.getLength());
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to complete upload " + upload.getId(), e);
+		}
+	}
+
+	/**
+	 * Called when the files of a session are about to be merged: from then on the merge discards them,
+	 * whether it succeeds or not, so the session must not expire under it.
+	 */
+	public void claimSession(String idPrefix) {
+		try {
+			Files.deleteIfExists(sessionFile(idPrefix));
+		} catch (IOException e) {
+			logger.warn("Could not delete the marker of session {}", idPrefix, e);
+		}
+	}
+
+	/**
+	 * Deletes the uploads that haven't received a chunk for expireAfterMillis. Their session is discarded
+	 * too, unless another of its uploads is still in progress: a session is merged once all its files are in,
+	 * which can't happen anymore. Sessions whose last upload completed more than expireAfterMillis ago and
+	 * that haven't been claimed for merging since are discarded as well. Runs every minute.
+	 */
+	@Scheduled(fixedDelay = SWEEP_INTERVAL_MILLIS, initialDelay = SWEEP_INTERVAL_MILLIS)
+	public void expireAbandonedUploads() {
+		if (!Files.isDirectory(uploadLocation)) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - expireAfterMillis;
+		List<ChunkedUpload> expired = new ArrayList<>();
+		Set<String> activeSessions = new HashSet<>();
+		try (DirectoryStream<Path> uploads = Files.newDirectoryStream(uploadLocation, "*.properties")) {
+			for (Path properties : uploads) {
+				String fileName = properties.getFileName().toString();
+				ChunkedUpload upload;
+				try {
+					upload = get(fileName.substring(0, fileName.length() - ".properties".length()));
+				} catch (ResponseStatusException e) {
+					continue; // completed or discarded in the meantime
+				}
+				// every chunk written updates the ".part" file
+				if (Files.getLastModifiedTime(partFile(upload.getId())).toMillis() < cutoff) {
+					expired.add(upload);
+				} else {
+					activeSessions.add(upload.getIdPrefix());
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Could not list uploads in {}", uploadLocation, e);
+			return;
+		}
+
+		Set<String> discardedSessions = new HashSet<>();
+		for (ChunkedUpload upload : expired) {
+			try (FileChannel channel = FileChannel.open(partFile(upload.getId()), StandardOpenOption.WRITE)) {
+				FileLock lock = tryLock(channel);
+				if (lock == null) {
+					continue; // the client came back just now
+				}
+				try {
+					discard(upload.getId());
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				logger.warn("Could not expire upload {}", upload.getId(), e);
+				continue;
+			}
+			logger.info("Expired upload {} of {} after {} of {} bytes", upload.getId(), upload.getFilename(),
+					upload.getOffset(), upload.getLength());
+			if (!activeSessions.contains(upload.getIdPrefix()) && discardedSessions.add(upload.getIdPrefix())) {
+				discardSession(upload.getIdPrefix());
+			}
+		}
+
+		try (DirectoryStream<Path> sessions = Files.newDirectoryStream(uploadLocation, "*.session")) {
+			for (Path session : sessions) {
+				String fileName = session.getFileName().toString();
+				String idPrefix = fileName.substring(0, fileName.length() - ".session".length());
+				if (!activeSessions.contains(idPrefix) && Files.getLastModifiedTime(session).toMillis() < cutoff
+						&& discardedSessions.add(idPrefix)) {
+					logger.info("Expired session {}, its uploads were never merged", idPrefix);
+					discardSession(idPrefix);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Could not list sessions in {}", uploadLocation, e);
+		}
+	}
+
+	private void discardSession(String idPrefix) {
+		claimSession(idPrefix);
+		storageService.discardFiles(idPrefix);
+	}
+
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null; // held by another thread of this JVM
+		}
+	}
+
+	private static byte[] sha256(Path file) throws IOException {
+		MessageDigest digest = newSha256();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return digest.digest();
+	}
+
+	private byte[] parseChecksum(String checksum) {
+		String[] parts = checksum.trim().split(" ");
+		if (parts.length != 2 || !parts[0].equals("sha256")) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, "Only \"sha256 <base64 digest>\" checksums are supported", null);
+		}
+		try {
+			return Base64.getDecoder().decode(parts[1]);
+		} catch (IllegalArgumentException e) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, "Checksum isn't valid base64: " + parts[1], e);
+			throw new IllegalStateException("logAndThrowException failed to throw for BAD_REQUEST.");
+		}
+	}
+
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always available", e);
+		}
+	}
+
+	private void discard(String uploadId) throws IOException {
+		Files.deleteIfExists(partFile(uploadId));
+		Files.deleteIfExists(propertiesFile(uploadId));
+	}
+
+	private Path partFile(String uploadId) {
+		return uploadLocation.resolve(checkId(uploadId) + ".part");
+	}
+
+	// Session ids are checked by the controllers, they are UUIDs too
+	private Path sessionFile(String idPrefix) {
+		return uploadLocation.resolve(checkId(idPrefix) + ".session");
+	}
+
+	private Path propertiesFile(String uploadId) {
+		return uploadLocation.resolve(checkId(uploadId) + ".properties");
+	}
+
+	// Upload ids end up in file names, only accept the UUIDs we hand out
+	private String checkId(String uploadId) {
+		try {
+			return UUID.fromString(uploadId).toString();
+		} catch (IllegalArgumentException e) {
+			logAndThrowException(HttpStatus.NOT_FOUND, "No upload in progress with id " + uploadId, e);
+			throw new IllegalStateException("logAndThrowException failed to throw for NOT_FOUND.");
+		}
+	}
+
+	private void logAndThrowException(HttpStatus status, String msg, Throwable e) {
+		logger.warn(msg, e);
+		throw new ResponseStatusException(status, msg, e);
+	}
+
+	public static final class ChunkedUpload {
+		private final String id;
+		private final String idPrefix;
+		private final String filename;
+		private final long length;
+		private final String checksum;
+		private final long offset;
+
+		ChunkedUpload(String id, String idPrefix, String filename, long length, String checksum, long offset) {
+			this.id = id;
+			this.idPrefix = idPrefix;
+			this.filename = filename;
+			this.length = length;
+			this.checksum = checksum;
+			this.offset = offset;
+		}
+
+		ChunkedUpload withOffset(long offset) {
+			return new ChunkedUpload(id, idPrefix, filename, length, checksum, offset);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getIdPrefix() {
+			return idPrefix;
+		}
+
+		public String getFilename() {
+			return filename;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public boolean isComplete() {
+			return offset == length;
+		}
+	}
+}
@@ -0,0 +1,358 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Keeps recently uploaded inputs by SHA-256 so that clients can reference them in later merges instead
+ * of uploading them again (cover sheets, terms and conditions, letterheads...).
+ * Files are hard links to the uploaded file, so adding an input or taking it into a merge doesn't copy it.
+ * Entries expire once they haven't been used for the TTL, and the least recently used ones are evicted
+ * when the store grows beyond its size cap.
+ * The index lives in memory, so each instance keeps its files in a directory of its own under the root,
+ * which may be shared: instances never delete each other's files. Each directory is locked by its
+ * instance for as long as it runs, those nobody holds the lock of are left over from instances that
+ * are gone and are deleted at startup.
+ */
+@Component
+public class ContentStore {
+	private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+	private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+	private static final String LOCK_SUFFIX = ".lock";
+
+	private final Path root; // null when the store is disabled
+	private final long ttlMillis;
+	private final long maxBytes;
+	private final BufferPool bufferPool;
+
+	// this instance's directory under root and the lock on it, set by init
+	private volatile Path location;
+	private FileChannel lockChannel;
+
+	// guarded by "this", in access order: the first entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	// Disabled store, used by tests and when LocalStorageService is built by hand
+	public ContentStore() {
+		this(null, 0, 0);
+	}
+
+	@Autowired
+	public ContentStore(@Value("${pdfmerger.content.enabled:false}") boolean enabled,
+			@Value("${pdfmerger.storage.location:./tmp}") String storageLocation,
+			@Value("${pdfmerger.content.ttl-minutes:30}") long ttlMinutes,
+			@Value("${pdfmerger.content.max-size:1GB}") DataSize maxSize, BufferPool bufferPool) {
+		this(enabled ? Paths.get(storageLocation).resolve("content") : null, ttlMinutes * 60_000, maxSize.toBytes(), bufferPool);
+	}
+
+	public ContentStore(Path root, long ttlMillis, long maxBytes) {
+		this(root, ttlMillis, maxBytes, new BufferPool());
+	}
+
+	public ContentStore(Path root, long ttlMillis, long maxBytes, BufferPool bufferPool) {
+		this.root = root;
+		this.ttlMillis = ttlMillis;
+		this.maxBytes = maxBytes;
+		this.bufferPool = bufferPool;
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		if (root == null) {
+			return;
+		}
+		Files.createDirectories(root);
+		deleteLeftovers();
+		String instance;
+		do {
+			if (lockChannel != null) {
+				lockChannel.close();
+			}
+			instance = UUID.randomUUID().toString();
+			Path lockFile = root.resolve(instance + LOCK_SUFFIX);
+			lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			lockChannel.lock(); // released when the channel is closed, by destroy or when the JVM exits
+			// another instance starting at the same time may have taken it for a leftover just before it was locked
+		} while (!Files.exists(root.resolve(instance + LOCK_SUFFIX)));
+		location = Files.createDirectories(root.resolve(instance));
+		logger.info("Keeping uploaded inputs by hash in {}", location);
+	}
+
+	// Deletes the directories of instances that are gone: those whose lock isn't held
+	private void deleteLeftovers() throws IOException {
+		try (DirectoryStream<Path> lockFiles = Files.newDirectoryStream(root, "*" + LOCK_SUFFIX)) {
+			for (Path lockFile : lockFiles) {
+				String name = lockFile.getFileName().toString();
+				Path directory = root.resolve(name.substring(0, name.length() - LOCK_SUFFIX.length()));
+				try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+					FileLock lock = tryLock(channel);
+					if (lock == null) {
+						continue; // another instance is running
+					}
+					try {
+						deleteRecursively(directory);
+						Files.deleteIfExists(lockFile);
+						logger.info("Deleted the content store of a previous instance in {}", directory);
+					} finally {
+						lock.release();
+					}
+				} catch (NoSuchFileException e) {
+					// deleted by another instance starting at the same time
+				}
+			}
+		}
+	}
+
+	@PreDestroy
+	public void destroy() throws IOException {
+		if (lockChannel == null) {
+			return;
+		}
+		Path directory = location;
+		location = null;
+		synchronized (this) {
+			entries.clear();
+			totalBytes = 0;
+		}
+		try {
+			deleteRecursively(directory);
+			Files.deleteIfExists(root.resolve(directory.getFileName() + LOCK_SUFFIX));
+		} finally {
+			lockChannel.close();
+		}
+	}
+
+	public boolean isEnabled() {
+		return root != null;
+	}
+
+	public static boolean isSha256(String value) {
+		return value != null && SHA256_HEX.matcher(value).matches();
+	}
+
+	// Adds an uploaded file, which must not be modified afterwards. Adding known content only refreshes it.
+	public void add(String sha256, Path file, String filename, long size) {
+		Path directory = location;
+		if (directory == null || size > maxBytes) {
+			return;
+		}
+		List<Path> evicted;
+		Entry known;
+		synchronized (this) {
+			evicted = evict();
+			known = entries.get(sha256);
+			if (known != null) {
+				known.lastUsedMillis = System.currentTimeMillis();
+			}
+		}
+		deleteAll(evicted);
+		if (known != null) {
+			return;
+		}
+
+		// linked outside the lock under a name of its own, concurrent adds of the same content can't collide
+		Path stored = directory.resolve(sha256 + "-" + UUID.randomUUID());
+		try {
+			link(file, stored);
+		} catch (IOException e) {
+			logger.warn("Could not add {} to the content store", file, e);
+			deleteAll(Collections.singletonList(stored));
+			return;
+		}
+		boolean added;
+		synchronized (this) {
+			added = !entries.containsKey(sha256);
+			if (added) {
+				entries.put(sha256, new Entry(stored, filename, size));
+				totalBytes += size;
+			}
+			evicted = evict();
+		}
+		if (!added) {
+			evicted.add(stored); // added by another upload of the same content in the meantime
+		}
+		deleteAll(evicted);
+	}
+
+	/**
+	 * Links the content with the given hash to target and returns the name it was uploaded with,
+	 * or null if the content is unknown (never uploaded, expired or evicted).
+	 */
+	public String linkTo(String sha256, Path target) throws IOException {
+		if (location == null) {
+			return null;
+		}
+		List<Path> evicted;
+		Entry entry;
+		synchronized (this) {
+			evicted = evict();
+			entry = entries.get(sha256);
+			if (entry != null) {
+				entry.lastUsedMillis = System.currentTimeMillis();
+			}
+		}
+		deleteAll(evicted);
+		if (entry == null) {
+			return null;
+		}
+		Files.deleteIfExists(target);
+		try {
+			link(entry.file, target);
+		} catch (NoSuchFileException e) {
+			return null; // evicted since it was looked up
+		}
+		return entry.filename;
+	}
+
+	public boolean contains(String sha256) {
+		List<Path> evicted;
+		boolean contained;
+		synchronized (this) {
+			evicted = evict();
+			contained = entries.containsKey(sha256);
+		}
+		deleteAll(evicted);
+		return contained;
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	// Drops expired entries, then the least recently used ones until the store fits its cap, and returns
+	// their files for the caller to delete once it has left the lock.
+	// Entries are in the order they were last used, so the ones to drop are all at the start.
+	private List<Path> evict() {
+		List<Path> evicted = new ArrayList<>();
+		long expiry = System.currentTimeMillis() - ttlMillis;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.lastUsedMillis > expiry && totalBytes <= maxBytes) {
+				break;
+			}
+			iterator.remove();
+			totalBytes -= entry.size;
+			evicted.add(entry.file);
+		}
+		return evicted;
+	}
+
+	private static void deleteAll(List<Path> files) {
+		for (Path file : files) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				logger.warn("Unable to delete {}", file, e);
+			}
+		}
+	}
+
+	private static void deleteRecursively(Path directory) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Collections.reverseOrder()) // contents first
+					.map(Path::toFile)
+					.forEach(File::delete);
+		}
+	}
+
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null; // held by this JVM, e.g. by another store in tests
+		}
+	}
+
+	// Hard links when the filesystem supports them, copies otherwise
+	private void link(Path existing, Path link) throws IOException {
+		try {
+			Files.createLink(link, existing);
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			copy(existing, link);
+		}
+	}
+
+	private void copy(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+				BufferPool.PooledBuffer pooled = bufferPool.acquire(COPY_BUFFER_SIZE)) {
+			ByteBuffer buffer = pooled.buffer();
+			while (in.read(buffer) >= 0 || buffer.position() > 0) {
+				buffer.flip();
+				out.write(buffer);
+				buffer.compact();
+			}
+		}
+	}
+
+	private static final class Entry {
+		private final Path file;
+		private final String filename;
+		private final long size;
+		private long lastUsedMillis = System.currentTimeMillis();
+
+		Entry(Path file, String filename, long size) {
+			this.file = file;
+			this.filename = filename;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Hands out merge slots fairly across clients (an API key or an IP address).
+ * With a single first-come-first-served queue, one client submitting a burst of large merges makes
+ * every small merge queued behind it wait. Here each client has its own queue and free slots go to
+ * the clients in deficit round robin order: on its turn a client is credited a quantum and may start
+ * queued merges as long as their estimated cost (files plus megabytes of input) fits in its credit.
+ * Small merges therefore start on their client's first turn, while a large one waits for as many
+ * rounds as its cost requires, and clients with nothing queued don't accumulate credit.
+ * Clients are forgotten, together with their statistics, once they have nothing queued or running.
+ * The number of slots is not what protects the instance, MergeAdmissionController's budgets are: the
+ * default is larger than the core count of small instances, fair ordering applies once all slots are taken.
+ */
+@Component
+public class FairMergeScheduler {
+	private final int concurrency;
+	private final long quantum;
+	private final long bytesPerCostUnit;
+	private final long waitTimeoutMillis;
+
+	// guarded by "this"
+	private final Map<String, Client> clients = new HashMap<>();
+	private final Deque<Client> active = new ArrayDeque<>(); // clients with queued merges, in round robin order
+	private int running;
+
+	@Autowired
+	public FairMergeScheduler(@Value("${pdfmerger.scheduler.concurrency:16}") int concurrency,
+			@Value("${pdfmerger.scheduler.quantum:16}") long quantum,
+			@Value("${pdfmerger.scheduler.bytes-per-cost-unit:1MB}") DataSize bytesPerCostUnit,
+			@Value("${pdfmerger.scheduler.wait-timeout-seconds:120}") long waitTimeoutSeconds) {
+		// 0 leaves the number of concurrent merges to the admission controller alone
+		this(concurrency > 0 ? concurrency : Integer.MAX_VALUE, quantum,
+				bytesPerCostUnit.toBytes(), TimeUnit.SECONDS.toMillis(waitTimeoutSeconds));
+	}
+
+	public FairMergeScheduler(int concurrency, long quantum, long bytesPerCostUnit, long waitTimeoutMillis) {
+		this.concurrency = concurrency;
+		this.quantum = quantum;
+		this.bytesPerCostUnit = bytesPerCostUnit;
+		this.waitTimeoutMillis = waitTimeoutMillis;
+	}
+
+	// Every file costs one unit, as does every bytesPerCostUnit of input
+	public long cost(int files, long bytes) {
+		return Math.max(1, files + (bytes + bytesPerCostUnit - 1) / bytesPerCostUnit);
+	}
+
+	/**
+	 * Blocks until the merge is given a slot.
+	 * Returns null if that didn't happen before the configured timeout.
+	 */
+	public Slot acquire(String clientKey, int files, long bytes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + waitTimeoutMillis;
+		synchronized (this) {
+			Client client = clients.computeIfAbsent(clientKey, Client::new);
+			Job job = new Job(client, cost(files, bytes));
+			if (client.queue.isEmpty()) {
+				active.addLast(client);
+			}
+			client.queue.addLast(job);
+			dispatch();
+			try {
+				while (!job.dispatched) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						withdraw(job);
+						return null;
+					}
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				if (job.dispatched) {
+					release(job);
+				} else {
+					withdraw(job);
+				}
+				throw e;
+			}
+			return new Slot(job);
+		}
+	}
+
+	// Gives free slots to queued merges
+	private void dispatch() {
+		boolean dispatched = false;
+		while (running < concurrency && !active.isEmpty()) {
+			Client client = active.peekFirst();
+			if (!client.credited) { // start of the client's turn
+				client.deficit += quantum;
+				client.credited = true;
+			}
+			Job job = client.queue.peekFirst();
+			if (job.cost > client.deficit) {
+				// end of the client's turn, it keeps its credit for the next one
+				client.credited = false;
+				active.addLast(active.pollFirst());
+				continue;
+			}
+			client.queue.pollFirst();
+			client.deficit -= job.cost;
+			client.running++;
+			client.dispatched++;
+			client.waitNanos += System.nanoTime() - job.enqueuedNanos;
+			running++;
+			job.dispatched = true;
+			dispatched = true;
+			if (client.queue.isEmpty()) {
+				leaveRound(client);
+			}
+		}
+		if (dispatched) {
+			notifyAll();
+		}
+	}
+
+	private void withdraw(Job job) {
+		Client client = job.client;
+		client.queue.remove(job);
+		if (client.queue.isEmpty()) {
+			leaveRound(client);
+			forgetIfIdle(client);
+		}
+		dispatch(); // the withdrawn merge may have been holding back the queue of its client
+	}
+
+	private synchronized void release(Job job) {
+		running--;
+		job.client.running--;
+		forgetIfIdle(job.client);
+		dispatch();
+	}
+
+	private void leaveRound(Client client) {
+		active.remove(client);
+		client.deficit = 0;
+		client.credited = false;
+	}
+
+	private void forgetIfIdle(Client client) {
+		if (client.queue.isEmpty() && client.running == 0) {
+			clients.remove(client.key);
+		}
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	// Queue statistics of the clients that currently have merges queued or running
+	public synchronized Map<String, ClientStats> getClientStats() {
+		Map<String, ClientStats> stats = new TreeMap<>();
+		for (Client client : clients.values()) {
+			long queuedCost = client.queue.stream().mapToLong(job -> job.cost).sum();
+			long averageWaitMillis = client.dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(client.waitNanos / client.dispatched);
+			stats.put(client.key, new ClientStats(client.queue.size(), queuedCost, client.deficit, client.running,
+					client.dispatched, averageWaitMillis));
+		}
+		return stats;
+	}
+
+	private static final class Client {
+		private final String key;
+		private final Deque<Job> queue = new ArrayDeque<>();
+		private long deficit;
+		private boolean credited;
+		private int running;
+		private long dispatched;
+		private long waitNanos;
+
+		Client(String key) {
+			this.key = key;
+		}
+	}
+
+	private static final class Job {
+		private final Client client;
+		private final long cost;
+		private final long enqueuedNanos = System.nanoTime();
+		private boolean dispatched;
+
+		Job(Client client, long cost) {
+			this.client = client;
+			this.cost = cost;
+		}
+	}
+
+	public static final class ClientStats {
+		private final int queued;
+		private final long queuedCost;
+		private final long deficit;
+		private final int running;
+		private final long dispatched;
+		private final long averageWaitMillis;
+
+		ClientStats(int queued, long queuedCost, long deficit, int running, long dispatched, long averageWaitMillis) {
+			this.queued = queued;
+			this.queuedCost = queuedCost;
+			this.deficit = deficit;
+			this.running = running;
+			this.dispatched = dispatched;
+			this.averageWaitMillis = averageWaitMillis;
+		}
+
+		public int getQueued() {
+			return queued;
+		}
+
+		public long getQueuedCost() {
+			return queuedCost;
+		}
+
+		public long getDeficit() {
+			return deficit;
+		}
+
+		public int getRunning() {
+			return running;
+		}
+
+		public long getDispatched() {
+			return dispatched;
+		}
+
+		public long getAverageWaitMillis() {
+			return averageWaitMillis;
+		}
+	}
+
+	// A merge slot. Closing it more than once is harmless.
+	public final class Slot implements AutoCloseable {
+		private final Job job;
+		private boolean released;
+
+		private Slot(Job job) {
+			this.job = job;
+		}
+
+		public long getCost() {
+			return job.cost;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			release(job);
+		}
+	}
+}
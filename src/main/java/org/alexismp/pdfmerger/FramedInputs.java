@@ -0,0 +1,135 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a headless merge request: a sequence of frames, one per document, in merge order.
+ * Each frame is the length of the document's name (2 bytes), the name in UTF-8, the length of the
+ * document (8 bytes) and the document itself. Lengths are big endian and the body ends after the last frame.
+ * Frames are read with fixed-size buffers, documents are never held in memory.
+ */
+public final class FramedInputs {
+	public static final String CONTENT_TYPE = "application/vnd.pdfmerger.frames";
+	static final int MAX_NAME_LENGTH = 1024;
+
+	private final InputStream in;
+	private final long maxTotalLength;
+	private final byte[] header = new byte[Long.BYTES];
+	private final byte[] nameBuffer = new byte[MAX_NAME_LENGTH];
+	private long totalLength;
+	private String name;
+	private long remaining; // bytes of the current document that haven't been read
+
+	public FramedInputs(InputStream in, long maxTotalLength) {
+		this.in = in;
+		this.maxTotalLength = maxTotalLength;
+	}
+
+	/**
+	 * Moves to the next document, skipping whatever hasn't been read of the current one.
+	 * Returns false at the end of the body.
+	 */
+	public boolean next() throws IOException {
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				throw new EOFException("Truncated document " + name);
+			}
+			remaining -= skipped;
+		}
+		int first = in.read();
+		if (first < 0) {
+			return false;
+		}
+		header[0] = (byte) first;
+		readFully(header, 1, Short.BYTES - 1);
+		int nameLength = ((header[0] & 0xff) << 8) | (header[1] & 0xff);
+		if (nameLength == 0 || nameLength > MAX_NAME_LENGTH) {
+			throw new IOException("Invalid name length " + nameLength);
+		}
+		readFully(nameBuffer, 0, nameLength);
+		name = new String(nameBuffer, 0, nameLength, StandardCharsets.UTF_8);
+		readFully(header, 0, Long.BYTES);
+		long length = ByteBuffer.wrap(header).getLong();
+		if (length < 0 || length > maxTotalLength - totalLength) {
+			throw new IOException("Documents larger than " + maxTotalLength + " bytes in total are not accepted");
+		}
+		totalLength += length;
+		remaining = length;
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLength() {
+		return remaining;
+	}
+
+	// The current document, it ends where the next frame starts. Closing it doesn't close the body.
+	public InputStream content() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				return read(header, 0, 1) < 0 ? -1 : header[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining == 0) {
+					return -1;
+				}
+				int read = in.read(b, off, (int) Math.min(len, remaining));
+				if (read < 0) {
+					throw new EOFException("Truncated document " + name);
+				}
+				remaining -= read;
+				return read;
+			}
+		};
+	}
+
+	// Writes the header of a frame, the document's length bytes must follow
+	public static void writeHeader(OutputStream out, String name, long length) throws IOException {
+		byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+		if (encodedName.length == 0 || encodedName.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Names must be 1 to " + MAX_NAME_LENGTH + " bytes long: " + name);
+		}
+		ByteBuffer header = ByteBuffer.allocate(Short.BYTES + encodedName.length + Long.BYTES);
+		header.putShort((short) encodedName.length).put(encodedName).putLong(length);
+		out.write(header.array());
+	}
+
+	private void readFully(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, offset, length);
+			if (read < 0) {
+				throw new EOFException("Truncated frame header");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+}
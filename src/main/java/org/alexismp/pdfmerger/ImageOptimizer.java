@@ -0,0 +1,246 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Re-encodes oversized page images (typically scans) to a target resolution and JPEG quality.
+ * Ghostscript rewrites each input as a whole, so that its outlines, links and form fields survive,
+ * and the inputs of a merge are rewritten in parallel on a pool sized to the number of cores.
+ * This is best effort: an input is only replaced if its optimized version is smaller, and any failure
+ * leaves it untouched.
+ */
+@Component
+public class ImageOptimizer {
+	private static final Logger logger = LoggerFactory.getLogger(ImageOptimizer.class);
+	// images are only resampled when above this multiple of the target resolution, as with Ghostscript's
+	// default, so that icons and images that are already small enough are not recompressed for nothing
+	private static final String DOWNSAMPLE_THRESHOLD = "1.5";
+
+	private final int dpi;
+	private final int jpegQuality;
+	private final int monoDpi;
+	private final ExecutorService executor;
+
+	// Optimizer with the default settings, used by tests and when LocalStorageService is built by hand
+	public ImageOptimizer() {
+		this(150, 75, 300, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Autowired
+	public ImageOptimizer(@Value("${pdfmerger.optimize.dpi:150}") int dpi,
+			@Value("${pdfmerger.optimize.jpeg-quality:75}") int jpegQuality,
+			@Value("${pdfmerger.optimize.mono-dpi:300}") int monoDpi) {
+		this(dpi, jpegQuality, monoDpi, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ImageOptimizer(int dpi, int jpegQuality, int monoDpi, int threads) {
+		this.dpi = dpi;
+		this.jpegQuality = jpegQuality;
+		this.monoDpi = monoDpi;
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "image-optimizer-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	// Optimizes the given files in place and reports how much smaller they got
+	public Report optimize(List<Path> inputs) throws InterruptedException {
+		Queue<Process> processes = new ConcurrentLinkedQueue<>();
+		List<Future<Path>> results = new ArrayList<>();
+		boolean completed = false;
+		try {
+			for (Path input : inputs) {
+				results.add(executor.submit(() -> rewrite(input, optimizedFile(input), processes)));
+			}
+
+			long before = 0;
+			long after = 0;
+			int optimized = 0;
+			for (int i = 0; i < inputs.size(); i++) {
+				Path input = inputs.get(i);
+				long size = size(input);
+				before += size;
+				Path result = await(input, results.get(i));
+				long resultSize = result == null ? size : size(result);
+				if (result != null && resultSize < size) {
+					try {
+						Files.move(result, input, StandardCopyOption.REPLACE_EXISTING);
+						optimized++;
+						after += resultSize;
+						continue;
+					} catch (IOException e) {
+						logger.warn("Could not replace {} with its optimized version", input, e);
+					}
+				}
+				deleteQuietly(result);
+				after += size;
+			}
+			completed = true;
+			return new Report(before, after, optimized);
+		} finally {
+			if (!completed) {
+				// interrupted: nothing started for this merge may outlive it, its inputs are about to be deleted
+				results.forEach(result -> result.cancel(true));
+				processes.forEach(Process::destroyForcibly);
+				inputs.forEach(input -> deleteQuietly(optimizedFile(input)));
+			}
+		}
+	}
+
+	// Waits for the optimized version of an input, returns null if it could not be optimized
+	private static Path await(Path input, Future<Path> result) throws InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			logger.warn("Could not optimize {}", input, e.getCause());
+			return null;
+		}
+	}
+
+	private static Path optimizedFile(Path input) {
+		return input.resolveSibling(input.getFileName() + ".optimized");
+	}
+
+	private Path rewrite(Path input, Path output, Queue<Process> processes) throws IOException, InterruptedException {
+		// AutoFilter lets Ghostscript pick JPEG for photographic images and a lossless filter for the rest
+		List<String> command = Arrays.asList("/usr/bin/gs", "-q", "-dNOPAUSE", "-dBATCH", "-dSAFER",
+				"-sDEVICE=pdfwrite",
+				"-dDownsampleColorImages=true", "-dColorImageResolution=" + dpi,
+				"-dColorImageDownsampleThreshold=" + DOWNSAMPLE_THRESHOLD,
+				"-dDownsampleGrayImages=true", "-dGrayImageResolution=" + dpi,
+				"-dGrayImageDownsampleThreshold=" + DOWNSAMPLE_THRESHOLD,
+				"-dAutoFilterColorImages=true", "-dAutoFilterGrayImages=true", "-dJPEGQ=" + jpegQuality,
+				// black and white scans are kept sharp and bilevel, compressed as fax images rather than JPEG
+				"-dDownsampleMonoImages=true", "-dMonoImageResolution=" + monoDpi,
+				"-dMonoImageDownsampleThreshold=" + DOWNSAMPLE_THRESHOLD, "-dMonoImageFilter=/CCITTFaxEncode",
+				"-sOutputFile=" + output, input.toString());
+		boolean succeeded = false;
+		try {
+			succeeded = run(command, processes);
+			if (!succeeded) {
+				throw new IOException("Ghostscript failed on " + input);
+			}
+			return output;
+		} finally {
+			if (!succeeded) {
+				deleteQuietly(output);
+			}
+		}
+	}
+
+	private static boolean run(List<String> command, Queue<Process> processes) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		processes.add(process);
+		try {
+			return process.waitFor() == 0;
+		} finally {
+			// still alive only if this task was cancelled while waiting
+			if (process.isAlive()) {
+				process.destroyForcibly();
+			}
+		}
+	}
+
+	private static long size(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static void deleteQuietly(Path file) {
+		if (file == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warn("Unable to delete {}", file, e);
+		}
+	}
+
+	public static final class Report {
+		private final long bytesBefore;
+		private final long bytesAfter;
+		private final int inputsOptimized;
+
+		public Report(long bytesBefore, long bytesAfter, int inputsOptimized) {
+			this.bytesBefore = bytesBefore;
+			this.bytesAfter = bytesAfter;
+			this.inputsOptimized = inputsOptimized;
+		}
+
+		public long getBytesBefore() {
+			return bytesBefore;
+		}
+
+		public long getBytesAfter() {
+			return bytesAfter;
+		}
+
+		public int getInputsOptimized() {
+			return inputsOptimized;
+		}
+
+		public long getBytesSaved() {
+			return bytesBefore - bytesAfter;
+		}
+
+		// e.g. "before=52428800; after=7340032; saved=86.0%; inputs=3"
+		@Override
+		public String toString() {
+			double saved = bytesBefore == 0 ? 0 : 100.0 * getBytesSaved() / bytesBefore;
+			return String.format(Locale.ROOT, "before=%d; after=%d; saved=%.1f%%; inputs=%d",
+					bytesBefore, bytesAfter, saved, inputsOptimized);
+		}
+	}
+}
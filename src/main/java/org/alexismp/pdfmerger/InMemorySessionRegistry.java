@@ -0,0 +1,100 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// Default registry, sessions only live in this instance's memory.
+// Uploads to the same session can run concurrently: sessions are created atomically and files are
+// appended without locking, in the order the uploads complete.
+@Component
+@ConditionalOnProperty(name = "pdfmerger.session.registry", havingValue = "memory", matchIfMissing = true)
+public class InMemorySessionRegistry implements SessionRegistry {
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final Map<String, String> generatedFilenamesByPrefix = new ConcurrentHashMap<>();
+
+	@Override
+	public boolean createSession(String idPrefix) {
+		boolean[] created = new boolean[1];
+		sessions.computeIfAbsent(idPrefix, id -> {
+			created[0] = true;
+			return new Session();
+		});
+		return created[0];
+	}
+
+	@Override
+	public void addFile(String idPrefix, Path file, long size) {
+		Session session = sessions.get(idPrefix);
+		if (session == null) {
+			throw new IllegalStateException("No session " + idPrefix + ", it was never created or has already been merged");
+		}
+		session.files.add(file);
+		session.totalBytes.addAndGet(size);
+	}
+
+	// A snapshot: uploads completing afterwards are not in it
+	@Override
+	public List<Path> getFiles(String idPrefix) {
+		Session session = sessions.get(idPrefix);
+		return session == null ? null : new ArrayList<>(session.files);
+	}
+
+	@Override
+	public long getTotalBytes(String idPrefix) {
+		Session session = sessions.get(idPrefix);
+		return session == null ? 0 : session.totalBytes.get();
+	}
+
+	@Override
+	public void removeSession(String idPrefix) {
+		sessions.remove(idPrefix);
+		generatedFilenamesByPrefix.remove(idPrefix);
+	}
+
+	@Override
+	public void setOutputFilename(String idPrefix, String filename) {
+		generatedFilenamesByPrefix.put(idPrefix, filename);
+	}
+
+	@Override
+	public String getOutputFilename(String idPrefix) {
+		return generatedFilenamesByPrefix.get(idPrefix);
+	}
+
+	@Override
+	public void removeOutputFilename(String idPrefix) {
+		generatedFilenamesByPrefix.remove(idPrefix);
+	}
+
+	private static final class Session {
+		// a lock-free FIFO, appends are a compare-and-set on the tail
+		private final Queue<Path> files = new ConcurrentLinkedQueue<>();
+		private final AtomicLong totalBytes = new AtomicLong();
+	}
+}
@@ -0,0 +1,234 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Prepares the inputs of a merge before pdfunite is started.
+ * pdfunite loads its inputs one after the other on a single core and only fails once it reaches a
+ * broken one, possibly minutes into a large merge. Checking the header, the trailer and the
+ * cross-reference offset of every input up front rejects such merges right away.
+ * The costly part of loading an input is resolving its objects when its cross-reference table is
+ * broken: pdfunite then rebuilds it by scanning the whole file, in turn for each input. Such inputs
+ * are rewritten with a sound table by qpdf here instead, concurrently, so that pdfunite is left with
+ * page assembly and the output write, in the order of the inputs.
+ * Inputs with a sound table are only probed (a few KB each), pdfunite still parses them itself.
+ * All of this runs on a fork-join pool shared by all requests, each of them using at most
+ * maxPerRequest of its workers.
+ */
+@Component
+public class InputPreflight {
+	private static final Logger logger = LoggerFactory.getLogger(InputPreflight.class);
+	// PDF readers accept the header anywhere in the first KB, the trailer is at the end of the file
+	private static final int PROBE_SIZE = 1024;
+	private static final Pattern STARTXREF = Pattern.compile("startxref\\s+(\\d{1,18})");
+	private static final Pattern XREF = Pattern.compile("\\s*(xref|\\d+\\s+\\d+\\s+obj)");
+
+	private final boolean enabled;
+	private final int maxPerRequest;
+	private final ForkJoinPool pool;
+
+	// Disabled preflight, used by tests and when LocalStorageService is built by hand
+	public InputPreflight() {
+		this(false, 1, 1);
+	}
+
+	@Autowired
+	public InputPreflight(@Value("${pdfmerger.preflight.enabled:false}") boolean enabled,
+			@Value("${pdfmerger.preflight.parallelism:0}") int parallelism,
+			@Value("${pdfmerger.preflight.max-per-request:4}") int maxPerRequest) {
+		this.enabled = enabled;
+		this.maxPerRequest = Math.max(1, maxPerRequest);
+		// no worker threads are started until the first check
+		this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the problems found in the inputs, in the order of the inputs, or an empty list if all of
+	 * them look mergeable, in which case the inputs with a broken cross-reference table have been repaired.
+	 * The inputs are split into at most maxPerRequest interleaved slices, so that large and small files
+	 * are spread over the slices, and each slice is handled by one task.
+	 */
+	public List<String> check(List<Path> inputs) throws InterruptedException, IOException {
+		String[] problems = new String[inputs.size()];
+		Queue<Path> brokenXrefs = new ConcurrentLinkedQueue<>();
+		Queue<Process> processes = new ConcurrentLinkedQueue<>();
+		boolean completed = false;
+		try {
+			forEachSliced(inputs.size(), i -> problems[i] = checkOne(inputs.get(i), brokenXrefs));
+
+			List<String> found = new ArrayList<>();
+			for (String problem : problems) {
+				if (problem != null) {
+					found.add(problem);
+				}
+			}
+			// no point in repairing the inputs of a merge that is rejected
+			if (found.isEmpty() && !brokenXrefs.isEmpty()) {
+				List<Path> toRepair = new ArrayList<>(brokenXrefs);
+				forEachSliced(toRepair.size(), i -> repair(toRepair.get(i), processes));
+			}
+			completed = true;
+			return found;
+		} finally {
+			if (!completed) {
+				// fork-join tasks aren't interrupted when cancelled, their qpdf processes are stopped here
+				processes.forEach(Process::destroyForcibly);
+			}
+		}
+	}
+
+	private void forEachSliced(int count, IntConsumer action) throws InterruptedException, IOException {
+		int slices = Math.min(maxPerRequest, count);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(slices);
+		AtomicBoolean abandoned = new AtomicBoolean();
+		for (int slice = 0; slice < slices; slice++) {
+			int first = slice;
+			tasks.add(pool.submit(() -> {
+				for (int i = first; i < count && !abandoned.get(); i += slices) {
+					action.accept(i);
+				}
+			}));
+		}
+		boolean completed = false;
+		try {
+			for (ForkJoinTask<?> task : tasks) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Preflight check failed", e.getCause());
+				}
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				abandoned.set(true);
+				tasks.forEach(task -> task.cancel(true));
+			}
+		}
+	}
+
+	// Returns null if the input looks mergeable, what's wrong with it otherwise
+	static String checkOne(Path input) {
+		return checkOne(input, new ConcurrentLinkedQueue<>());
+	}
+
+	private static String checkOne(Path input, Queue<Path> brokenXrefs) {
+		String name = input.getFileName().toString();
+		try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (!read(channel, 0, PROBE_SIZE).contains("%PDF-")) {
+				return name + " is not a PDF document";
+			}
+			String trailer = read(channel, Math.max(0, size - PROBE_SIZE), PROBE_SIZE);
+			if (!trailer.contains("%%EOF")) {
+				return name + " is truncated";
+			}
+			// incremental updates append trailers, the last startxref is the one that counts
+			long xrefOffset = -1;
+			Matcher matcher = STARTXREF.matcher(trailer);
+			while (matcher.find()) {
+				xrefOffset = Long.parseLong(matcher.group(1));
+			}
+			if (xrefOffset < 0 || xrefOffset >= size || !XREF.matcher(read(channel, xrefOffset, 32)).lookingAt()) {
+				// not fatal: the table can be rebuilt by scanning the file, slowly
+				logger.warn("{} has a broken cross-reference offset", name);
+				brokenXrefs.add(input);
+			}
+			return null;
+		} catch (IOException e) {
+			logger.warn("Could not read {}", input, e);
+			return name + " could not be read";
+		}
+	}
+
+	// Rewrites input with a rebuilt cross-reference table, leaves it as it is if that fails:
+	// pdfunite can still rebuild the table itself
+	private static void repair(Path input, Queue<Process> processes) {
+		Path repaired = input.resolveSibling(input.getFileName() + ".repaired");
+		try {
+			Process process = new ProcessBuilder("/usr/bin/qpdf", input.toString(), repaired.toString())
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+					.redirectError(ProcessBuilder.Redirect.DISCARD)
+					.start();
+			processes.add(process);
+			int exitCode = process.waitFor();
+			// qpdf exits with 3 when the output was written but warnings were issued, as it does after a repair
+			if (exitCode == 0 || exitCode == 3) {
+				// renamed over the input rather than written through it, it may be a hard link into the content store
+				Files.move(repaired, input, StandardCopyOption.REPLACE_EXISTING);
+				logger.debug("Rebuilt the cross-reference table of {}", input);
+			} else {
+				logger.warn("qpdf exited with error code {} while repairing {}", exitCode, input);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not repair {}", input, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				Files.deleteIfExists(repaired);
+			} catch (IOException e) {
+				logger.warn("Unable to delete {}", repaired, e);
+			}
+		}
+	}
+
+	private static String read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+			// keep reading until the buffer is full or the end of the file is reached
+		}
+		return new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+	}
+}
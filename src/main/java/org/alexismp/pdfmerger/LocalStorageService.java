@@ -16,44 +16,121 @@
  */
 package org.alexismp.pdfmerger;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
 @Service
 public class LocalStorageService implements StorageService {
+	private static final Logger logger = LoggerFactory.getLogger(LocalStorageService.class);
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	private static final long FOLLOW_INTERVAL_MILLIS = 10;
+	private static final int MAX_LOGGED_ERRORS = 4 * 1024;
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+	private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+
 	private final Path rootLocation;
 	private final String outputFilename = "output.pdf"; // Kept for now, but new logic uses dynamic names
-	private Map<String, List<Path>> allFiles;
-	private Map<String, String> generatedFilenamesByPrefix; // New field
+	private final SessionRegistry sessionRegistry; // inputs and output filename of each session
+	private final MergeAdmissionController admissionController;
+	private final Map<String, ParkedLease> leasesByPrefix; // held from mergeFiles until getMergedPDF
+	private final RequestTimelines requestTimelines;
+	private final ImageOptimizer imageOptimizer;
+	private final InputPreflight inputPreflight;
+	private final ContentStore contentStore; // uploads kept by hash for later merges
+	private final BufferPool bufferPool;
 
 	// New constructor for tests and general use
 	public LocalStorageService(Path rootLocation) {
+		this(rootLocation, new MergeAdmissionController());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController) {
+		this(rootLocation, admissionController, new InMemorySessionRegistry());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController, SessionRegistry sessionRegistry) {
+		this(rootLocation, admissionController, sessionRegistry, new RequestTimelines());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController, SessionRegistry sessionRegistry,
+			RequestTimelines requestTimelines) {
+		this(rootLocation, admissionController, sessionRegistry, requestTimelines, new ImageOptimizer());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController, SessionRegistry sessionRegistry,
+			RequestTimelines requestTimelines, ImageOptimizer imageOptimizer) {
+		this(rootLocation, admissionController, sessionRegistry, requestTimelines, imageOptimizer, new InputPreflight());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController, SessionRegistry sessionRegistry,
+			RequestTimelines requestTimelines, ImageOptimizer imageOptimizer, InputPreflight inputPreflight) {
+		this(rootLocation, admissionController, sessionRegistry, requestTimelines, imageOptimizer, inputPreflight, new ContentStore());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController, SessionRegistry sessionRegistry,
+			RequestTimelines requestTimelines, ImageOptimizer imageOptimizer, InputPreflight inputPreflight,
+			ContentStore contentStore) {
+		this(rootLocation, admissionController, sessionRegistry, requestTimelines, imageOptimizer, inputPreflight, contentStore,
+				new BufferPool());
+	}
+
+	public LocalStorageService(Path rootLocation, MergeAdmissionController admissionController, SessionRegistry sessionRegistry,
+			RequestTimelines requestTimelines, ImageOptimizer imageOptimizer, InputPreflight inputPreflight,
+			ContentStore contentStore, BufferPool bufferPool) {
 		this.rootLocation = rootLocation;
-		this.allFiles = new ConcurrentHashMap<>();
-		this.generatedFilenamesByPrefix = new ConcurrentHashMap<>(); // Initialize new map
+		this.sessionRegistry = sessionRegistry;
+		this.admissionController = admissionController;
+		this.leasesByPrefix = new ConcurrentHashMap<>();
+		this.requestTimelines = requestTimelines;
+		this.imageOptimizer = imageOptimizer;
+		this.inputPreflight = inputPreflight;
+		this.contentStore = contentStore;
+		this.bufferPool = bufferPool;
 		// init() is not called here; will be called by Spring or explicitly in tests.
 	}
 
+	// With a shared session registry, the storage location must also be shared by all instances
 	@Autowired
-	public LocalStorageService() {
-		this(Paths.get("./tmp")); // Delegates to the new constructor
-		// Note: generatedFilenamesByPrefix is initialized by the delegating constructor
+	public LocalStorageService(@Value("${pdfmerger.storage.location:./tmp}") String location,
+			MergeAdmissionController admissionController, SessionRegistry sessionRegistry, RequestTimelines requestTimelines,
+			ImageOptimizer imageOptimizer, InputPreflight inputPreflight, ContentStore contentStore, BufferPool bufferPool) {
+		this(Paths.get(location), admissionController, sessionRegistry, requestTimelines, imageOptimizer, inputPreflight,
+				contentStore, bufferPool); // Delegates to the new constructor
 	}
 
 	// Helper method to get basename without .pdf extension
@@ -95,113 +172,266 @@ public class LocalStorageService implements StorageService {
 	public void init() {
 		try {
 			Files.createDirectories(this.rootLocation); // Use this.rootLocation
-			System.out.println("Created temporary directory at: " + this.rootLocation.toString());
+			logger.info("Created temporary directory at: {}", this.rootLocation);
 			// This could also be a good place to test that the binary used is actually available
 		} catch (IOException e) {
 			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not initialize storage!", e);
 		}
 	}
 
-	@Override
-	public void storePDF(MultipartFile file, String idPrefix) {
-		// create a unique temp directory for this set of files and an ordered list of files to merge
-		List<Path> filesToMerge;
+	// create a unique temp directory for this set of files and an ordered list of files to merge
+	private Path openSession(String idPrefix) {
 		Path userSpecificDir = this.rootLocation.resolve(idPrefix); // Use this.rootLocation.resolve()
 
-		if (allFiles.containsKey(idPrefix)) {
-			filesToMerge = allFiles.get(idPrefix);
-		} else {
-			filesToMerge = Collections.synchronizedList(new ArrayList<Path>());
-			allFiles.put(idPrefix, filesToMerge);
-			try {
-				Files.createDirectories(userSpecificDir); // Create directory using Files API
-			} catch (IOException e) {
-				logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create user specific directory " + userSpecificDir, e);
-			}
+		sessionRegistry.createSession(idPrefix);
+		// not only when the session was created: a concurrent upload to the same session
+		// may otherwise get here before the thread that created it has made the directory
+		try {
+			Files.createDirectories(userSpecificDir); // Create directory using Files API
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create user specific directory " + userSpecificDir, e);
 		}
+		return userSpecificDir;
+	}
 
-		String filename = file.getOriginalFilename();
+	// Returns where the file goes in the session directory, only if it can be added to the session
+	private Path checkUpload(Path userSpecificDir, String filename, boolean empty) {
 		if (!filename.endsWith(".pdf")) {
 			logAndThrowException(HttpStatus.BAD_REQUEST, filename + " doesn't seem to be a PDF file.", null);
-		} else if (file.isEmpty()) {
+		} else if (empty) {
 			logAndThrowException(HttpStatus.NO_CONTENT, filename + " is empty!", null);
-		} else if (filename.contains("..")) { // This is a security check
+		} else if (filename.contains("..") || filename.contains("/") || filename.contains("\\")) { // This is a security check
 			logAndThrowException(HttpStatus.FORBIDDEN, "Sorry, can't navigate the filesystem... "+ filename, null);
-		} else {
-			try {
-				InputStream inputStream = file.getInputStream();
-				Path tmpFile = userSpecificDir.resolve(file.getOriginalFilename()); // Use userSpecificDir.resolve()
-				Files.copy(inputStream, tmpFile, StandardCopyOption.REPLACE_EXISTING);
-				System.out.println("Successfully saved " + tmpFile.toString());
-				filesToMerge.add(tmpFile);
-			} catch (IOException e) {
-				logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store file " + file, e);
+		}
+		Path target = userSpecificDir.resolve(filename);
+		if (!target.normalize().startsWith(userSpecificDir.normalize())) { // whatever the platform's separators and roots are
+			logAndThrowException(HttpStatus.FORBIDDEN, "Sorry, can't navigate the filesystem... "+ filename, null);
+		}
+		return target;
+	}
+
+	@Override
+	public void storePDF(MultipartFile file, String idPrefix) {
+		Path userSpecificDir = openSession(idPrefix);
+
+		String filename = file.getOriginalFilename();
+		Path target = checkUpload(userSpecificDir, filename, file.isEmpty());
+		try {
+			copyIntoSession(file.getInputStream(), target, filename, idPrefix);
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store file " + file, e);
+		}
+	}
+
+	@Override
+	public void storePDF(InputStream content, long length, String filename, String idPrefix) {
+		Path userSpecificDir = openSession(idPrefix);
+
+		Path target = checkUpload(userSpecificDir, filename, length == 0);
+		try {
+			copyIntoSession(content, target, filename, idPrefix);
+		} catch (EOFException e) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, filename + " is shorter than announced.", e);
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store file " + filename, e);
+		}
+	}
+
+	private void copyIntoSession(InputStream inputStream, Path tmpFile, String filename, String idPrefix) throws IOException {
+		long start = System.nanoTime();
+		// hashed while it is written, for the content store
+		MessageDigest digest = contentStore.isEnabled() ? newSha256() : null;
+		if (digest != null) {
+			inputStream = new DigestInputStream(inputStream, digest);
+		}
+		long size = 0;
+		// Written under a fresh name then renamed over tmpFile: an earlier file of that name may be a hard link
+		// into the content store, writing through it would change content stored under another digest
+		Path partFile = Files.createTempFile(tmpFile.getParent(), "upload-", ".part");
+		try {
+			try (ReadableByteChannel source = Channels.newChannel(inputStream);
+					FileChannel target = FileChannel.open(partFile, StandardOpenOption.WRITE);
+					BufferPool.PooledBuffer pooled = bufferPool.acquire(COPY_BUFFER_SIZE)) {
+				ByteBuffer buffer = pooled.buffer();
+				while (source.read(buffer) >= 0) {
+					buffer.flip();
+					size += target.write(buffer);
+					buffer.compact();
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					size += target.write(buffer);
+				}
 			}
+			Files.move(partFile, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			deleteQuietly(partFile);
+		}
+		requestTimelines.record(idPrefix, "store", start);
+		logger.debug("Successfully saved {}", tmpFile);
+		sessionRegistry.addFile(idPrefix, tmpFile, size);
+		if (digest != null) {
+			contentStore.add(String.format("%064x", new BigInteger(1, digest.digest())), tmpFile, filename, size);
 		}
 	}
 
 	@Override
-	public MergedPdfFile getMergedPDF(String idPrefix) { // Changed return type
-		String dynamicOutputFilenameOnly = this.generatedFilenamesByPrefix.get(idPrefix);
-		if (dynamicOutputFilenameOnly == null) {
-			logAndThrowException(HttpStatus.NOT_FOUND,
-					"Merged PDF filename not found for prefix '" + idPrefix +
-					"'. Merge might not have been called or failed to generate a name.", null);
-			// Though logAndThrowException throws, satisfy compiler that a value would be returned or exception thrown.
-			// This path should not be reached if logAndThrowException works as expected.
-			throw new IllegalStateException("logAndThrowException failed to throw for NOT_FOUND.");
+	public void storePDF(Path uploadedFile, String filename, String idPrefix) {
+		Path userSpecificDir = openSession(idPrefix);
+		try {
+			long size = Files.size(uploadedFile);
+			Path tmpFile = checkUpload(userSpecificDir, filename, size == 0);
+			Files.move(uploadedFile, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+			logger.debug("Successfully moved {} to {}", uploadedFile, tmpFile);
+			sessionRegistry.addFile(idPrefix, tmpFile, size);
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store file " + uploadedFile, e);
 		}
+	}
 
-		Path resultFile = this.rootLocation.resolve(idPrefix + "-" + dynamicOutputFilenameOnly);
-		if (!Files.exists(resultFile)) {
-			logAndThrowException(HttpStatus.FORBIDDEN, "Trying to access merged PDF file that doesn't exist: " + resultFile, null);
-			// Similar to above, ensure this path isn't reached if exception is thrown.
-			throw new IllegalStateException("logAndThrowException failed to throw for FORBIDDEN.");
+	@Override
+	public void storeKnownPDF(String sha256, String idPrefix) {
+		if (!ContentStore.isSha256(sha256)) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, sha256 + " is not a SHA-256 digest in lowercase hex.", null);
 		}
+		Path userSpecificDir = openSession(idPrefix);
 		try {
-			byte[] resultBytes = Files.readAllBytes(resultFile); // Read into resultBytes
-			Files.delete(resultFile);
-			this.generatedFilenamesByPrefix.remove(idPrefix); // Clean up the stored filename
-			return new MergedPdfFile(resultBytes, dynamicOutputFilenameOnly); // Return new MergedPdfFile
-		} catch (IOException ioe) {
-			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Error serving merged PDF for " + resultFile, ioe);
-			// Similar to above, ensure this path isn't reached if exception is thrown.
-			throw new IllegalStateException("logAndThrowException failed to throw for INTERNAL_SERVER_ERROR.");
+			long start = System.nanoTime();
+			// each reference gets a directory of its own so that it keeps the name it was uploaded with
+			// (used for the output filename) without colliding with other inputs of the session
+			Path referenceDir = Files.createTempDirectory(userSpecificDir, "sha256-");
+			// the target is named after the hash until the name the content was uploaded with is known
+			Path linked = referenceDir.resolve(sha256 + ".pdf");
+			String filename = contentStore.linkTo(sha256, linked);
+			if (filename == null) {
+				logAndThrowException(HttpStatus.NOT_FOUND, "Unknown input sha256:" + sha256 + ", it needs to be uploaded.", null);
+			}
+			Path tmpFile = referenceDir.resolve(filename);
+			Files.move(linked, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+			requestTimelines.record(idPrefix, "store", start);
+			logger.debug("Reused sha256:{} as {}", sha256, tmpFile);
+			sessionRegistry.addFile(idPrefix, tmpFile, Files.size(tmpFile));
+		} catch (IOException e) {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to reuse input sha256:" + sha256, e);
 		}
 	}
 
 	@Override
-	public void mergeFiles(String idPrefix) {
-		List<Path> filesToMerge = allFiles.get(idPrefix);
+	public boolean isKnownPDF(String sha256) {
+		return ContentStore.isSha256(sha256) && contentStore.contains(sha256);
+	}
+
+	@Override
+	public MergedPdfFile getMergedPDF(String idPrefix) { // Changed return type
+		// taken before anything can fail, so that the lease is released on every path below
+		ParkedLease parked = this.leasesByPrefix.remove(idPrefix);
+		MergeAdmissionController.Lease lease = parked != null ? parked.lease() : null;
+		boolean spilled = false;
+		try {
+			String dynamicOutputFilenameOnly = sessionRegistry.getOutputFilename(idPrefix);
+			if (dynamicOutputFilenameOnly == null) {
+				logAndThrowException(HttpStatus.NOT_FOUND,
+						"Merged PDF filename not found for prefix '" + idPrefix +
+						"'. Merge might not have been called or failed to generate a name.", null);
+			}
+
+			Path resultFile = this.rootLocation.resolve(idPrefix + "-" + dynamicOutputFilenameOnly);
+			if (!Files.exists(resultFile)) {
+				sessionRegistry.removeOutputFilename(idPrefix);
+				logAndThrowException(HttpStatus.FORBIDDEN, "Trying to access merged PDF file that doesn't exist: " + resultFile, null);
+			}
+			long start = System.nanoTime();
+			try {
+				if (lease != null && lease.getWeight().isSpill()) {
+					// Large merges are not read onto the heap, the caller streams and deletes the scratch file,
+					// which releases the lease: the output counts against the disk budget until then
+					sessionRegistry.removeOutputFilename(idPrefix);
+					spilled = true;
+					return new MergedPdfFile(null, dynamicOutputFilenameOnly, resultFile, lease);
+				}
+				byte[] resultBytes = readFully(resultFile); // Read into resultBytes
+				Files.delete(resultFile);
+				sessionRegistry.removeOutputFilename(idPrefix); // Clean up the stored filename
+				requestTimelines.record(idPrefix, "readback", start);
+				return new MergedPdfFile(resultBytes, dynamicOutputFilenameOnly); // Return new MergedPdfFile
+			} catch (IOException ioe) {
+				logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Error serving merged PDF for " + resultFile, ioe);
+				// Ensure this path isn't reached if exception is thrown.
+				throw new IllegalStateException("logAndThrowException failed to throw for INTERNAL_SERVER_ERROR.");
+			}
+		} finally {
+			if (lease != null && !spilled) {
+				lease.close();
+			}
+		}
+	}
+
+	// Releases the leases of merged outputs nobody came back for, along with the outputs themselves
+	@Scheduled(fixedDelay = SWEEP_INTERVAL_MILLIS, initialDelay = SWEEP_INTERVAL_MILLIS)
+	public void expireParkedLeases() {
+		long cutoff = System.currentTimeMillis() - admissionController.getParkedLeaseTtlMillis();
+		for (Map.Entry<String, ParkedLease> entry : leasesByPrefix.entrySet()) {
+			String idPrefix = entry.getKey();
+			ParkedLease parked = entry.getValue();
+			// remove(key, value) so that a lease getMergedPDF has just taken is left alone
+			if (parked.parkedAtMillis() < cutoff && leasesByPrefix.remove(idPrefix, parked)) {
+				try {
+					String outputFilename = sessionRegistry.getOutputFilename(idPrefix);
+					if (outputFilename != null) {
+						deleteQuietly(this.rootLocation.resolve(idPrefix + "-" + outputFilename));
+						sessionRegistry.removeOutputFilename(idPrefix);
+					}
+					logger.info("Discarded the merged PDF of {}, it was never fetched", idPrefix);
+				} finally {
+					parked.lease().close();
+				}
+			}
+		}
+	}
+
+	// A lease kept from mergeFiles until getMergedPDF, with when it was parked
+	private record ParkedLease(MergeAdmissionController.Lease lease, long parkedAtMillis) {
+	}
+
+	@Override
+	public void mergeFiles(String idPrefix, boolean linearize) {
+		List<Path> filesToMerge = sessionRegistry.getFiles(idPrefix);
 
 		if (filesToMerge == null || filesToMerge.isEmpty()) {
 			logAndThrowException(HttpStatus.BAD_REQUEST, "No files found to merge for prefix: " + idPrefix, null);
 			return; // Unreachable due to exception
 		}
 
+		preflight(idPrefix, filesToMerge);
+		long admissionStart = System.nanoTime();
+		MergeAdmissionController.Lease lease = admit(idPrefix, filesToMerge, linearize);
+		requestTimelines.record(idPrefix, "admission", admissionStart);
+		boolean merged = false;
+
 		String dynamicOutputFilenameOnly = generateOutputFilename(filesToMerge);
-		this.generatedFilenamesByPrefix.put(idPrefix, dynamicOutputFilenameOnly); // Store for getMergedPDF
 
 		Path resultFile = this.rootLocation.resolve(idPrefix + "-" + dynamicOutputFilenameOnly);
-		final StringBuilder mergeCommand = new StringBuilder("/usr/bin/pdfunite ");
-
-		// add all files in the order they're specified
-		System.out.println("About to merge " + filesToMerge.size() + " files into " + resultFile.toString());
-		for (final Path filePath : filesToMerge) { // Changed variable name for clarity
-			String newFile = "'" + filePath.toString() + "' ";
-			mergeCommand.append(newFile);
-		}
-		mergeCommand.append(" ");
-		mergeCommand.append("'" + resultFile.toString() + "'"); // Enclose output file in quotes for safety
-
-		final ProcessBuilder builder = new ProcessBuilder();
-		builder.command("sh", "-c", mergeCommand.toString());
+		// when linearizing, pdfunite writes to an intermediate file that qpdf then rewrites into resultFile
+		Path mergedFile = linearize
+				? this.rootLocation.resolve(idPrefix + "-unlinearized-" + dynamicOutputFilenameOnly)
+				: resultFile;
+		Path errors = errorsFile(idPrefix);
+		logger.debug("About to merge {} files into {}", filesToMerge.size(), resultFile);
 
 		try {
-			final Process process = builder.inheritIO().start();
+			long mergeStart = System.nanoTime();
+			final Process process = start(pdfuniteCommand(filesToMerge, mergedFile), errors);
 			final int exitCode = process.waitFor();
+			requestTimelines.record(idPrefix, "pdfunite", mergeStart);
+			logErrors("pdfunite", errors, exitCode);
 			if (exitCode == 0) {
-				System.out.println("Success: merged " + filesToMerge.size() + " files.");
+				logger.debug("Success: merged {} files.", filesToMerge.size());
+				if (linearize) {
+					long linearizeStart = System.nanoTime();
+					linearize(mergedFile, resultFile, errors);
+					requestTimelines.record(idPrefix, "linearize", linearizeStart);
+				}
+				merged = true;
 			} else {
 				logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR,
 						"Merging process exited with error code : " + exitCode, null);
@@ -210,33 +440,348 @@ public class LocalStorageService implements StorageService {
 			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR,
 					"Something went wrong trying to merge ! ", e);
 		} finally {
-			// clean up master Map and delete directory
-			try {
-				allFiles.remove(idPrefix);
-				Path dir = this.rootLocation.resolve(idPrefix); // Use this.rootLocation.resolve()
-				// Ensure files within the directory are deleted first
-				if (Files.exists(dir) && Files.isDirectory(dir)) {
-					Files.walk(dir)
-							.sorted(Collections.reverseOrder()) // Delete contents first
-							.map(Path::toFile)
-							.forEach(File::delete);
+			if (linearize) {
+				deleteQuietly(mergedFile);
+			}
+			deleteQuietly(errors);
+			cleanUpInputs(idPrefix);
+			// the output is only recorded once it exists, so that a failed merge leaves no name behind,
+			// and its lease is kept until getMergedPDF has served it
+			if (merged) {
+				recordOutput(idPrefix, dynamicOutputFilenameOnly, resultFile, lease);
+			} else {
+				lease.close();
+				deleteQuietly(resultFile);
+			}
+		}
+	}
+
+	private void recordOutput(String idPrefix, String outputFilename, Path resultFile, MergeAdmissionController.Lease lease) {
+		try {
+			sessionRegistry.setOutputFilename(idPrefix, outputFilename); // Store for getMergedPDF
+		} catch (RuntimeException e) {
+			lease.close();
+			deleteQuietly(resultFile);
+			throw e;
+		}
+		leasesByPrefix.put(idPrefix, new ParkedLease(lease, System.currentTimeMillis()));
+	}
+
+	@Override
+	public ImageOptimizer.Report optimizeImages(String idPrefix) {
+		List<Path> filesToOptimize = sessionRegistry.getFiles(idPrefix);
+
+		if (filesToOptimize == null || filesToOptimize.isEmpty()) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, "No files found to optimize for prefix: " + idPrefix, null);
+			return null; // Unreachable due to exception
+		}
+
+		// the optimized copies count against the scratch-disk budget until they have replaced the inputs
+		long totalInputBytes = sessionRegistry.getTotalBytes(idPrefix);
+		long admissionStart = System.nanoTime();
+		MergeAdmissionController.Lease lease = admit(idPrefix, admissionController.estimateOptimization(totalInputBytes), totalInputBytes);
+		requestTimelines.record(idPrefix, "admission", admissionStart);
+		// inputs are rewritten in place, the session keeps its files and their order
+		try (lease) {
+			long start = System.nanoTime();
+			ImageOptimizer.Report report = imageOptimizer.optimize(filesToOptimize);
+			requestTimelines.record(idPrefix, "optimize", start);
+			logger.info("Optimized images of {}: {}", idPrefix, report);
+			return report;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cleanUpInputs(idPrefix);
+			logAndThrowException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while optimizing images of " + idPrefix, e);
+			return null; // Unreachable due to exception
+		}
+	}
+
+	@Override
+	public String getMergedFilename(String idPrefix) {
+		return generateOutputFilename(sessionRegistry.getFiles(idPrefix));
+	}
+
+	@Override
+	public void streamMergedPDF(String idPrefix, OutputStream out) throws IOException {
+		List<Path> filesToMerge = sessionRegistry.getFiles(idPrefix);
+
+		if (filesToMerge == null || filesToMerge.isEmpty()) {
+			logAndThrowException(HttpStatus.BAD_REQUEST, "No files found to merge for prefix: " + idPrefix, null);
+			return; // Unreachable due to exception
+		}
+
+		preflight(idPrefix, filesToMerge);
+		long admissionStart = System.nanoTime();
+		MergeAdmissionController.Lease lease = admit(idPrefix, filesToMerge, false);
+		requestTimelines.record(idPrefix, "admission", admissionStart);
+
+		Path resultFile = this.rootLocation.resolve(idPrefix + "-" + generateOutputFilename(filesToMerge));
+		Path errors = errorsFile(idPrefix);
+		logger.debug("About to stream the merge of {} files through {}", filesToMerge.size(), resultFile);
+		Process process = null;
+		try {
+			long mergeStart = System.nanoTime();
+			process = start(pdfuniteCommand(filesToMerge, resultFile), errors);
+			long streamed = followOutput(process, resultFile, out);
+			final int exitCode = process.waitFor();
+			requestTimelines.record(idPrefix, "pdfunite", mergeStart);
+			logErrors("pdfunite", errors, exitCode);
+			if (exitCode != 0) {
+				// the response is already under way, the exception makes the container close the connection
+				// without terminating the chunked body, so that the client sees an incomplete response
+				logger.warn("Merging process exited with error code : {} after streaming {} bytes", exitCode, streamed);
+				throw new IOException("Merging process exited with error code : " + exitCode);
+			}
+			logger.debug("Success: streamed {} bytes merged from {} files.", streamed, filesToMerge.size());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while streaming the merge of " + idPrefix);
+		} finally {
+			// pdfunite is still running if the client went away or the response timed out
+			if (process != null) {
+				process.destroy();
+			}
+			lease.close();
+			deleteQuietly(resultFile);
+			deleteQuietly(errors);
+			cleanUpInputs(idPrefix);
+		}
+	}
+
+	// Rejects the merge before pdfunite is started if one of its inputs can't be merged,
+	// and repairs the inputs that pdfunite would have to repair itself
+	private void preflight(String idPrefix, List<Path> filesToMerge) {
+		if (!inputPreflight.isEnabled()) {
+			return;
+		}
+		List<String> problems = Collections.emptyList();
+		try {
+			long start = System.nanoTime();
+			problems = inputPreflight.check(filesToMerge);
+			requestTimelines.record(idPrefix, "preflight", start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cleanUpInputs(idPrefix);
+			logAndThrowException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while checking the files of " + idPrefix, e);
+		} catch (IOException e) {
+			cleanUpInputs(idPrefix);
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not check the files of " + idPrefix, e);
+		}
+		if (!problems.isEmpty()) {
+			cleanUpInputs(idPrefix);
+			logAndThrowException(HttpStatus.BAD_REQUEST, String.join(", ", problems), null);
+		}
+	}
+
+	// Reads file through a pooled direct buffer. Files.readAllBytes would have the JDK copy it through
+	// a temporary direct buffer as large as the file, cached by the request thread afterwards.
+	private byte[] readFully(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException(file + " is too large to be read into memory");
+			}
+			byte[] content = new byte[(int) size];
+			try (BufferPool.PooledBuffer pooled = bufferPool.acquire(content.length)) {
+				ByteBuffer buffer = pooled.buffer();
+				int position = 0;
+				while (position < content.length) {
+					buffer.clear();
+					int read = channel.read(buffer, position);
+					if (read < 0) {
+						throw new EOFException(file + " was truncated while being read");
+					}
+					buffer.flip();
+					buffer.get(content, position, read);
+					position += read;
+				}
+			}
+			return content;
+		}
+	}
+
+	// Copies output to out while pdfunite is still writing it. pdfunite writes front to back, each input's
+	// objects in turn and then the xref table and trailer, so bytes never change once they're in the file.
+	private long followOutput(Process process, Path output, OutputStream out) throws IOException, InterruptedException {
+		WritableByteChannel target = Channels.newChannel(out); // not closed, the caller owns out
+		FileChannel channel = null;
+		long position = 0;
+		try (BufferPool.PooledBuffer pooled = bufferPool.acquire(STREAM_BUFFER_SIZE)) {
+			ByteBuffer buffer = pooled.buffer();
+			while (true) {
+				// checked before reading, so that bytes written just before exiting are still copied
+				boolean exited = !process.isAlive();
+				if (channel == null && Files.exists(output)) {
+					channel = FileChannel.open(output, StandardOpenOption.READ);
+				}
+				buffer.clear();
+				int read = channel == null ? 0 : channel.read(buffer, position);
+				if (read > 0) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						target.write(buffer);
+					}
+					position += read;
+				} else if (exited) {
+					out.flush();
+					return position;
+				} else {
+					out.flush(); // send what we have as a chunk while pdfunite works on the next input
+					Thread.sleep(FOLLOW_INTERVAL_MILLIS);
 				}
-				// Files.delete(dir); // The directory itself will be deleted by @TempDir or further cleanup
-			} catch (IOException e) {
-				System.err.println("Unable to delete all files: " + e);
 			}
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	// Merges all files in the order they're specified into output.
+	// pdfunite gets its arguments as they are, no shell is involved, so any character is fine in a filename.
+	static List<String> pdfuniteCommand(List<Path> filesToMerge, Path output) {
+		final List<String> command = new ArrayList<>(filesToMerge.size() + 2);
+		command.add("/usr/bin/pdfunite");
+		for (final Path filePath : filesToMerge) {
+			command.add(filePath.toString());
+		}
+		command.add(output.toString());
+		return command;
+	}
+
+	// Where pdfunite and qpdf write their diagnostics for this merge
+	private Path errorsFile(String idPrefix) {
+		return this.rootLocation.resolve(idPrefix + ".stderr");
+	}
+
+	// Starts command directly (no shell). Our tools write their output to files and have nothing useful
+	// to say on stdout, stderr goes to the errors file so that failures can be diagnosed.
+	private Process start(List<String> command, Path errors) throws IOException {
+		return new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectError(errors.toFile())
+				.start();
+	}
+
+	// Logs the end of what tool wrote to stderr, as a warning if it failed
+	private void logErrors(String tool, Path errors, int exitCode) {
+		try (FileChannel channel = FileChannel.open(errors, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size == 0) {
+				return;
+			}
+			ByteBuffer tail = ByteBuffer.allocate((int) Math.min(size, MAX_LOGGED_ERRORS));
+			channel.read(tail, size - tail.capacity());
+			String text = new String(tail.array(), 0, tail.position(), StandardCharsets.UTF_8).trim();
+			if (exitCode == 0) {
+				logger.debug("{} reported: {}", tool, text);
+			} else {
+				logger.warn("{} exited with error code {}: {}", tool, exitCode, text);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to read the diagnostics of {} from {}", tool, errors, e);
 		}
 	}
 
+	private void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warn("Unable to delete {}", file, e);
+		}
+	}
+
+	// Rewrites source with a hint table and the first page's objects up front ("fast web view"),
+	// so that viewers can render page 1 before the whole file has been downloaded
+	private void linearize(Path source, Path target, Path errors) throws IOException, InterruptedException {
+		final Process process = start(Arrays.asList("/usr/bin/qpdf", "--linearize", source.toString(), target.toString()), errors);
+		final int exitCode = process.waitFor();
+		logErrors("qpdf", errors, exitCode);
+		// qpdf exits with 3 when the output was written but warnings were issued
+		if (exitCode == 0 || exitCode == 3) {
+			logger.debug("Success: linearized {}", target);
+		} else {
+			logAndThrowException(HttpStatus.INTERNAL_SERVER_ERROR,
+					"Linearization process exited with error code : " + exitCode, null);
+		}
+	}
+
+	// clean up master Map and delete directory
+	private void cleanUpInputs(String idPrefix) {
+		try {
+			sessionRegistry.removeSession(idPrefix);
+			Path dir = this.rootLocation.resolve(idPrefix); // Use this.rootLocation.resolve()
+			// Ensure files within the directory are deleted first
+			if (Files.exists(dir) && Files.isDirectory(dir)) {
+				Files.walk(dir)
+						.sorted(Collections.reverseOrder()) // Delete contents first
+						.map(Path::toFile)
+						.forEach(File::delete);
+			}
+			// Files.delete(dir); // The directory itself will be deleted by @TempDir or further cleanup
+		} catch (IOException e) {
+			logger.warn("Unable to delete all files", e);
+		}
+	}
+
+	// Waits for the merge's estimated memory and scratch-disk weight to fit in the global budget
+	// Inputs are weighed as they are now on disk, optimizeImages may have made them smaller since they were stored
+	private MergeAdmissionController.Lease admit(String idPrefix, List<Path> filesToMerge, boolean linearize) {
+		long totalInputBytes = 0;
+		try {
+			for (Path file : filesToMerge) {
+				totalInputBytes += Files.size(file);
+			}
+		} catch (IOException e) {
+			totalInputBytes = sessionRegistry.getTotalBytes(idPrefix);
+		}
+		return admit(idPrefix, admissionController.estimate(totalInputBytes, linearize), totalInputBytes);
+	}
+
+	private MergeAdmissionController.Lease admit(String idPrefix, MergeAdmissionController.Weight weight, long totalInputBytes) {
+		MergeAdmissionController.Lease lease = null;
+		try {
+			lease = admissionController.acquire(weight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cleanUpInputs(idPrefix);
+			logAndThrowException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while waiting to merge " + idPrefix, e);
+		}
+		if (lease == null) {
+			cleanUpInputs(idPrefix);
+			logAndThrowException(HttpStatus.SERVICE_UNAVAILABLE,
+					"Too many merges in progress, could not reserve " + totalInputBytes + " bytes of inputs for " + idPrefix, null);
+		}
+		return lease;
+	}
+
 	@Override
 	public int numberOfFilesToMerge(String idPrefix) {
-        List<Path> prefixedFiles = allFiles.get(idPrefix);
-        if (allFiles == null || prefixedFiles == null) return 0;
-		return allFiles.get(idPrefix).size();
+		List<Path> prefixedFiles = sessionRegistry.getFiles(idPrefix);
+		if (prefixedFiles == null) return 0;
+		return prefixedFiles.size();
+	}
+
+	@Override
+	public long totalBytesToMerge(String idPrefix) {
+		return sessionRegistry.getTotalBytes(idPrefix);
+	}
+
+	@Override
+	public void discardFiles(String idPrefix) {
+		cleanUpInputs(idPrefix);
+	}
+
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always available", e);
+		}
 	}
 
 	private void logAndThrowException(HttpStatus status, String msg, Throwable e) {
-		System.err.println(msg);
+		logger.warn(msg, e);
 		throw new ResponseStatusException(status, msg, e);
 	}
 
@@ -245,15 +790,19 @@ public class LocalStorageService implements StorageService {
 	}
 
 	public List<Path> getFilesToMerge(String idPrefix) {
-		return allFiles.get(idPrefix);
+		return sessionRegistry.getFiles(idPrefix);
 	}
 
 	// --- Methods for test purposes ---
 	protected void setGeneratedFilenameForPrefix(String idPrefix, String filename) {
-		this.generatedFilenamesByPrefix.put(idPrefix, filename);
+		sessionRegistry.setOutputFilename(idPrefix, filename);
+	}
+
+	protected void parkLease(String idPrefix, MergeAdmissionController.Lease lease, long parkedAtMillis) {
+		leasesByPrefix.put(idPrefix, new ParkedLease(lease, parkedAtMillis));
 	}
 
 	public String getGeneratedFilenameForPrefix(String idPrefix) {
-		return this.generatedFilenamesByPrefix.get(idPrefix);
+		return sessionRegistry.getOutputFilename(idPrefix);
 	}
 }
\ No newline at end of file
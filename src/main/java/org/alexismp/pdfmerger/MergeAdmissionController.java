@@ -0,0 +1,197 @@
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Admits merges against a global memory and scratch-disk budget.
+ * A plain concurrency limit doesn't work here: ten small merges are harmless while a
+ * few large ones can exhaust the instance, so every merge acquires a weight derived
+ * from the size of its inputs before pdfunite is started.
+ */
+@Component
+public class MergeAdmissionController {
+	private final long memoryBudget;
+	private final long diskBudget;
+	private final long spillThreshold;
+	private final long acquireTimeoutMillis;
+	private final long parkedLeaseTtlMillis;
+
+	// guarded by "this"
+	private long memoryInUse;
+	private long diskInUse;
+
+	// Unbounded controller, used by tests and when LocalStorageService is built by hand
+	public MergeAdmissionController() {
+		this(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+	}
+
+	@Autowired
+	public MergeAdmissionController(
+			@Value("${pdfmerger.admission.memory-budget:512MB}") DataSize memoryBudget,
+			@Value("${pdfmerger.admission.disk-budget:2GB}") DataSize diskBudget,
+			@Value("${pdfmerger.admission.spill-threshold:16MB}") DataSize spillThreshold,
+			@Value("${pdfmerger.admission.acquire-timeout-seconds:60}") long acquireTimeoutSeconds,
+			@Value("${pdfmerger.admission.parked-lease-ttl-minutes:15}") long parkedLeaseTtlMinutes) {
+		this(memoryBudget.toBytes(), diskBudget.toBytes(), spillThreshold.toBytes(),
+				TimeUnit.SECONDS.toMillis(acquireTimeoutSeconds), TimeUnit.MINUTES.toMillis(parkedLeaseTtlMinutes));
+	}
+
+	public MergeAdmissionController(long memoryBudget, long diskBudget, long spillThreshold, long acquireTimeoutMillis) {
+		this(memoryBudget, diskBudget, spillThreshold, acquireTimeoutMillis, TimeUnit.MINUTES.toMillis(15));
+	}
+
+	public MergeAdmissionController(long memoryBudget, long diskBudget, long spillThreshold, long acquireTimeoutMillis,
+			long parkedLeaseTtlMillis) {
+		this.memoryBudget = memoryBudget;
+		this.diskBudget = diskBudget;
+		this.spillThreshold = spillThreshold;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.parkedLeaseTtlMillis = parkedLeaseTtlMillis;
+	}
+
+	/**
+	 * Estimates the footprint of a merge from the total size of its inputs.
+	 * pdfunite's working set grows roughly with the inputs and the output is about as large
+	 * as the inputs combined. Reading that output back onto the heap doubles the memory
+	 * cost, so merges above the spill threshold are served from the scratch file instead.
+	 * Scratch disk holds the inputs plus the output, and when linearizing also the intermediate
+	 * output pdfunite writes for qpdf.
+	 * Weights are capped at the budget so that an oversized merge still runs, alone.
+	 */
+	public Weight estimate(long totalInputBytes, boolean linearize) {
+		boolean spill = totalInputBytes >= spillThreshold;
+		long memory = spill ? totalInputBytes : saturatedAdd(totalInputBytes, totalInputBytes);
+		long disk = saturatedAdd(totalInputBytes, totalInputBytes);
+		if (linearize) {
+			disk = saturatedAdd(disk, totalInputBytes);
+		}
+		return new Weight(Math.min(memory, memoryBudget), Math.min(disk, diskBudget), spill);
+	}
+
+	public Weight estimate(long totalInputBytes) {
+		return estimate(totalInputBytes, false);
+	}
+
+	/**
+	 * Estimates the footprint of recompressing the images of the inputs before they are merged.
+	 * Ghostscript works page by page, so memory doesn't grow with the inputs, while the optimized
+	 * copies take at most as much scratch disk as the inputs they replace.
+	 */
+	public Weight estimateOptimization(long totalInputBytes) {
+		return new Weight(0, Math.min(totalInputBytes, diskBudget), false);
+	}
+
+	/**
+	 * Blocks until the weight fits in both budgets.
+	 * Returns null if it didn't fit before the configured timeout.
+	 */
+	public Lease acquire(Weight weight) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + acquireTimeoutMillis;
+		synchronized (this) {
+			while (memoryInUse + weight.memoryBytes > memoryBudget || diskInUse + weight.diskBytes > diskBudget) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return null;
+				}
+				wait(remaining);
+			}
+			memoryInUse += weight.memoryBytes;
+			diskInUse += weight.diskBytes;
+		}
+		return new Lease(weight);
+	}
+
+	private synchronized void release(Weight weight) {
+		memoryInUse -= weight.memoryBytes;
+		diskInUse -= weight.diskBytes;
+		notifyAll();
+	}
+
+	// How long the lease of a merged output is kept for its download before the output is discarded
+	public long getParkedLeaseTtlMillis() {
+		return parkedLeaseTtlMillis;
+	}
+
+	public synchronized long getMemoryInUse() {
+		return memoryInUse;
+	}
+
+	public synchronized long getDiskInUse() {
+		return diskInUse;
+	}
+
+	private static long saturatedAdd(long a, long b) {
+		long sum = a + b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+
+	public static final class Weight {
+		private final long memoryBytes;
+		private final long diskBytes;
+		private final boolean spill;
+
+		Weight(long memoryBytes, long diskBytes, boolean spill) {
+			this.memoryBytes = memoryBytes;
+			this.diskBytes = diskBytes;
+			this.spill = spill;
+		}
+
+		public long getMemoryBytes() {
+			return memoryBytes;
+		}
+
+		public long getDiskBytes() {
+			return diskBytes;
+		}
+
+		// Whether the merged output should stay in its scratch file rather than be read onto the heap
+		public boolean isSpill() {
+			return spill;
+		}
+	}
+
+	// A granted weight. Closing it more than once is harmless.
+	public final class Lease implements AutoCloseable {
+		private final Weight weight;
+		private boolean released;
+
+		private Lease(Weight weight) {
+			this.weight = weight;
+		}
+
+		public Weight getWeight() {
+			return weight;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			release(weight);
+		}
+	}
+}
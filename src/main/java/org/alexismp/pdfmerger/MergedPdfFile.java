@@ -1,3 +1,74 @@
 package org.alexismp.pdfmerger;
 
-public record MergedPdfFile(byte[] content, String filename) {}
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// content is null when the merge was spilled, in which case the output is still in spillFile
+// and the merge's admission lease is held until the stream from openSpillFile is closed
+public record MergedPdfFile(byte[] content, String filename, Path spillFile, MergeAdmissionController.Lease lease) {
+	private static final int SPILL_BUFFER_SIZE = 256 * 1024;
+
+	public MergedPdfFile(byte[] content, String filename) {
+		this(content, filename, null, null);
+	}
+
+	// Closing the stream deletes the scratch file and gives its disk budget back.
+	// The file is read through a pooled direct buffer, held until then.
+	public InputStream openSpillFile(BufferPool bufferPool) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+		} catch (IOException e) {
+			releaseLease();
+			throw e;
+		}
+		BufferPool.PooledBuffer pooled = bufferPool.acquire(SPILL_BUFFER_SIZE);
+		ByteBuffer buffer = pooled.buffer();
+		buffer.flip(); // nothing read yet
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (!buffer.hasRemaining()) {
+					buffer.clear();
+					int read = channel.read(buffer);
+					buffer.flip();
+					if (read < 0) {
+						return -1;
+					}
+				}
+				int count = Math.min(len, buffer.remaining());
+				buffer.get(b, off, count);
+				return count;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					channel.close();
+				} finally {
+					pooled.close();
+					releaseLease();
+				}
+			}
+		};
+	}
+
+	private void releaseLease() {
+		if (lease != null) {
+			lease.close();
+		}
+	}
+}
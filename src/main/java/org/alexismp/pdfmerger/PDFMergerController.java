@@ -17,59 +17,358 @@
 package org.alexismp.pdfmerger;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 // Removed @ResponseBody as ResponseEntity is used
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 // Added imports
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 @Controller
 public class PDFMergerController {
 
+	static final String SERVER_TIMING = "Server-Timing";
+	static final String IMAGE_SAVINGS = "X-Image-Savings";
+	static final String API_KEY = "X-API-Key";
+	// filename of a part that references an input uploaded earlier instead of carrying it
+	static final String SHA256_REFERENCE = "sha256:";
+
 	private final StorageService storageService;
+	private final RequestTimelines requestTimelines;
+	private final FairMergeScheduler mergeScheduler;
+	private final BufferPool bufferPool;
+	private final ChunkedUploadService uploadService;
+	private final long maxRawRequestBytes;
 
 	@Autowired
-	public PDFMergerController(final StorageService storageService) {
+	public PDFMergerController(final StorageService storageService, final RequestTimelines requestTimelines,
+			final FairMergeScheduler mergeScheduler, final BufferPool bufferPool, final ChunkedUploadService uploadService,
+			@Value("${pdfmerger.raw.max-request-size:40MB}") final DataSize maxRawRequestSize) {
 		this.storageService = storageService;
+		this.requestTimelines = requestTimelines;
+		this.mergeScheduler = mergeScheduler;
+		this.bufferPool = bufferPool;
+		this.uploadService = uploadService;
+		this.maxRawRequestBytes = maxRawRequestSize.toBytes();
 	}
 
 	@PostMapping(value = "/pdfmerger") // Removed produces and @ResponseBody
-	public ResponseEntity<byte[]> handleFileUpload(@RequestParam("files") final MultipartFile[] files) {
+	public ResponseEntity<Resource> handleFileUpload(@RequestParam(value = "files", required = false) final MultipartFile[] files,
+			@RequestParam(value = "linearize", defaultValue = "false") final boolean linearize,
+			@RequestParam(value = "optimize", defaultValue = "false") final boolean optimize,
+			final HttpServletRequest request) throws IOException {
+		UUID prefix = UUID.randomUUID();
+		RequestTimeline timeline = startTimeline(prefix.toString(), request);
+		try {
+			storeUploadedFiles(files, prefix);
+			return mergeStoredFiles(linearize, optimize, prefix.toString(), clientKey(request), timeline);
+		} finally {
+			requestTimelines.finish(prefix.toString());
+		}
+	}
+
+	// Same as above, but the merged document is sent while it is being produced
+	@PostMapping(value = "/pdfmerger", params = "stream=true")
+	public ResponseEntity<StreamingResponseBody> handleStreamedFileUpload(@RequestParam(value = "files", required = false) final MultipartFile[] files,
+			@RequestParam(value = "linearize", defaultValue = "false") final boolean linearize,
+			@RequestParam(value = "optimize", defaultValue = "false") final boolean optimize,
+			final HttpServletRequest request, final HttpServletResponse servletResponse) {
+		checkStreamable(linearize); // before anything is stored
 		UUID prefix = UUID.randomUUID();
+		RequestTimeline timeline = startTimeline(prefix.toString(), request);
+		boolean streaming = false;
+		try {
+			storeUploadedFiles(files, prefix);
+			ResponseEntity<StreamingResponseBody> response = streamStoredFiles(optimize, prefix.toString(), clientKey(request), timeline, servletResponse);
+			streaming = response.getBody() != null;
+			return response;
+		} finally {
+			if (!streaming) { // otherwise the streaming body finishes the timeline once it is done
+				requestTimelines.finish(prefix.toString());
+			}
+		}
+	}
+
+	// Merges the files of a session built with chunked uploads (see ChunkedUploadController)
+	@PostMapping(value = "/pdfmerger/sessions/{session}")
+	public ResponseEntity<Resource> mergeSession(@PathVariable("session") final String session,
+			@RequestParam(value = "linearize", defaultValue = "false") final boolean linearize,
+			@RequestParam(value = "optimize", defaultValue = "false") final boolean optimize,
+			final HttpServletRequest request) throws IOException {
+		String prefix = ChunkedUploadController.checkSession(session);
+		RequestTimeline timeline = startTimeline(prefix, request);
+		uploadService.claimSession(prefix); // the merge discards the session however it ends
+		try {
+			return mergeStoredFiles(linearize, optimize, prefix, clientKey(request), timeline);
+		} finally {
+			requestTimelines.finish(prefix);
+		}
+	}
+
+	@PostMapping(value = "/pdfmerger/sessions/{session}", params = "stream=true")
+	public ResponseEntity<StreamingResponseBody> streamSession(@PathVariable("session") final String session,
+			@RequestParam(value = "linearize", defaultValue = "false") final boolean linearize,
+			@RequestParam(value = "optimize", defaultValue = "false") final boolean optimize,
+			final HttpServletRequest request, final HttpServletResponse servletResponse) {
+		checkStreamable(linearize); // the session is kept, it can still be merged without streaming
+		String prefix = ChunkedUploadController.checkSession(session);
+		RequestTimeline timeline = startTimeline(prefix, request);
+		uploadService.claimSession(prefix); // the merge discards the session however it ends
+		boolean streaming = false;
+		try {
+			ResponseEntity<StreamingResponseBody> response = streamStoredFiles(optimize, prefix, clientKey(request), timeline, servletResponse);
+			streaming = response.getBody() != null;
+			return response;
+		} finally {
+			if (!streaming) {
+				requestTimelines.finish(prefix);
+			}
+		}
+	}
 
-		for (MultipartFile file : files) {
-			// Added null check for getOriginalFilename() for robustness
-			if (file.getOriginalFilename() != null && !file.getOriginalFilename().isEmpty()) { // ignore empty form inputs
-				storageService.storePDF(file, prefix.toString());
+	// Headless merges for machine clients (see PdfMergerClient in the tests): the body is a sequence of frames (see FramedInputs)
+	// parsed as it arrives rather than a multipart form, and the merged document is streamed back as it is produced
+	@PostMapping(value = "/pdfmerger/raw", consumes = FramedInputs.CONTENT_TYPE)
+	public ResponseEntity<StreamingResponseBody> handleRawUpload(
+			@RequestParam(value = "optimize", defaultValue = "false") final boolean optimize,
+			final HttpServletRequest request, final HttpServletResponse servletResponse) throws IOException {
+		String prefix = UUID.randomUUID().toString();
+		RequestTimeline timeline = startTimeline(prefix, request);
+		boolean streaming = false;
+		try {
+			storeFramedFiles(new FramedInputs(request.getInputStream(), maxRawRequestBytes), prefix);
+			ResponseEntity<StreamingResponseBody> response = streamStoredFiles(optimize, prefix, clientKey(request), timeline, servletResponse);
+			streaming = response.getBody() != null;
+			return response;
+		} finally {
+			if (!streaming) {
+				requestTimelines.finish(prefix);
 			}
 		}
+	}
+
+	// Tells clients whether an input can be referenced by its hash rather than uploaded
+	@RequestMapping(value = "/pdfmerger/inputs/{sha256}", method = RequestMethod.HEAD)
+	public ResponseEntity<Void> knownInput(@PathVariable("sha256") final String sha256) {
+		return storageService.isKnownPDF(sha256) ? ResponseEntity.ok().build() : ResponseEntity.notFound().build();
+	}
 
-		if (storageService.numberOfFilesToMerge(prefix.toString()) != 0) {
-			storageService.mergeFiles(prefix.toString());
-			MergedPdfFile mergedPdfFile = storageService.getMergedPDF(prefix.toString()); // Get the object
+	// Per-client merge queues, see FairMergeScheduler
+	@GetMapping(value = "/pdfmerger/scheduler", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Map<String, FairMergeScheduler.ClientStats>> schedulerStats() {
+		return ResponseEntity.ok(mergeScheduler.getClientStats());
+	}
+
+	// Hits, misses and outstanding buffers of the storage buffer pool
+	@GetMapping(value = "/pdfmerger/buffers", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<BufferPool.Stats> bufferStats() {
+		return ResponseEntity.ok(bufferPool.getStats());
+	}
 
-			if (mergedPdfFile == null || mergedPdfFile.content() == null) {
-				// This case should ideally not happen if getMergedPDF throws exceptions for errors
-				return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+	// The multipart body has been parsed by the time the controller is called, that's the upload phase
+	private RequestTimeline startTimeline(String idPrefix, HttpServletRequest request) {
+		long now = System.nanoTime();
+		Object requestStart = request.getAttribute(RequestStartFilter.START_NANOS_ATTRIBUTE);
+		long startNanos = requestStart instanceof Long ? (Long) requestStart : now;
+		RequestTimeline timeline = requestTimelines.start(idPrefix, startNanos);
+		timeline.record("upload", now - startNanos);
+		return timeline;
+	}
+
+	// The files stored so far are discarded if one of them is rejected, e.g. a reference to unknown content
+	private void storeUploadedFiles(final MultipartFile[] files, final UUID prefix) {
+		try {
+			for (MultipartFile file : files != null ? files : new MultipartFile[0]) {
+				// Added null check for getOriginalFilename() for robustness
+				if (file.getOriginalFilename() != null && file.getOriginalFilename().startsWith(SHA256_REFERENCE)) {
+					storageService.storeKnownPDF(file.getOriginalFilename().substring(SHA256_REFERENCE.length()), prefix.toString());
+				} else if (file.getOriginalFilename() != null && !file.getOriginalFilename().isEmpty()) { // ignore empty form inputs
+					storageService.storePDF(file, prefix.toString());
+				}
 			}
+		} catch (ResponseStatusException e) {
+			storageService.discardFiles(prefix.toString());
+			throw e;
+		}
+	}
+
+	// Each document is copied from the request body straight into the session, the files stored so far
+	// are discarded if the body turns out to be malformed
+	private void storeFramedFiles(final FramedInputs inputs, final String prefix) {
+		try {
+			while (inputs.next()) {
+				if (inputs.getName().startsWith(SHA256_REFERENCE)) {
+					storageService.storeKnownPDF(inputs.getName().substring(SHA256_REFERENCE.length()), prefix);
+				} else {
+					storageService.storePDF(inputs.content(), inputs.getLength(), inputs.getName(), prefix);
+				}
+			}
+		} catch (IOException e) {
+			storageService.discardFiles(prefix);
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed request body: " + e.getMessage(), e);
+		} catch (ResponseStatusException e) {
+			storageService.discardFiles(prefix);
+			throw e;
+		}
+	}
 
-			HttpHeaders headers = new HttpHeaders();
-			headers.setContentType(MediaType.APPLICATION_PDF);
-			// Ensure filename is properly quoted.
-			headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename="" + mergedPdfFile.filename() + """);
+	private ResponseEntity<Resource> mergeStoredFiles(final boolean linearize, final boolean optimize, final String prefix,
+			final String client, final RequestTimeline timeline) throws IOException {
+		int files = storageService.numberOfFilesToMerge(prefix);
+		if (files == 0) { // no files to merge
+			return ResponseEntity.noContent().header(SERVER_TIMING, timeline.toServerTiming()).build();
+		}
+
+		ImageOptimizer.Report savings;
+		MergedPdfFile mergedPdfFile;
+		try (FairMergeScheduler.Slot slot = schedule(prefix, client, files)) {
+			savings = optimize ? storageService.optimizeImages(prefix) : null;
+			storageService.mergeFiles(prefix, linearize);
+			mergedPdfFile = storageService.getMergedPDF(prefix); // Get the object
+		}
+
+		if (mergedPdfFile == null || (mergedPdfFile.content() == null && mergedPdfFile.spillFile() == null)) {
+			// This case should ideally not happen if getMergedPDF throws exceptions for errors
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+		}
+
+		HttpHeaders headers = pdfHeaders(mergedPdfFile.filename(), timeline, savings);
+		if (mergedPdfFile.spillFile() != null) {
+			// spilled merges are streamed from their scratch file, which is deleted once the response is written
+			InputStream spilled = mergedPdfFile.openSpillFile(bufferPool);
+			try {
+				headers.setContentLength(Files.size(mergedPdfFile.spillFile()));
+			} catch (IOException e) {
+				spilled.close();
+				throw e;
+			}
+			return new ResponseEntity<>(new InputStreamResource(spilled), headers, HttpStatus.OK);
+		}
+		return new ResponseEntity<>(new ByteArrayResource(mergedPdfFile.content()), headers, HttpStatus.OK);
+	}
+
+	// The merged document is sent with chunked transfer as pdfunite produces it, so the first bytes leave
+	// as soon as the first input has been copied. Its length isn't known up front and neither is the outcome:
+	// a failed merge shows up as a truncated response.
+	private static void checkStreamable(final boolean linearize) {
+		if (linearize) {
+			// the linearization dictionary at the start of the file depends on the complete output
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Linearized output can't be streamed");
+		}
+	}
+
+	private ResponseEntity<StreamingResponseBody> streamStoredFiles(final boolean optimize, final String prefix,
+			final String client, final RequestTimeline timeline, final HttpServletResponse servletResponse) {
+		int files = storageService.numberOfFilesToMerge(prefix);
+		if (files == 0) { // no files to merge
+			return ResponseEntity.noContent().header(SERVER_TIMING, timeline.toServerTiming()).build();
+		}
+		// the slot is held until the body has been written
+		FairMergeScheduler.Slot slot = schedule(prefix, client, files);
+		boolean streaming = false;
+		try {
+			ImageOptimizer.Report savings = optimize ? storageService.optimizeImages(prefix) : null;
+			HttpHeaders headers = pdfHeaders(storageService.getMergedFilename(prefix), timeline, savings);
+			addTimingTrailer(servletResponse, headers, timeline);
+			// a failure once bytes have been sent propagates to the container, which then cuts the connection
+			StreamingResponseBody body = out -> {
+				try {
+					storageService.streamMergedPDF(prefix, out);
+				} finally {
+					slot.close();
+					requestTimelines.finish(prefix);
+				}
+			};
+			streaming = true;
+			return new ResponseEntity<>(body, headers, HttpStatus.OK);
+		} finally {
+			if (!streaming) {
+				slot.close();
+			}
+		}
+	}
+
+	// The merge itself happens while the body is written, so its phases are sent in a trailer after it.
+	// Clients that don't read trailers (most of them, browsers included) only see the phases up to the queue.
+	private void addTimingTrailer(final HttpServletResponse servletResponse, final HttpHeaders headers, final RequestTimeline timeline) {
+		Set<String> sentPhases = timeline.getNanosByPhase().keySet();
+		try {
+			servletResponse.setTrailerFields(() -> Map.of(SERVER_TIMING, timeline.toServerTiming(sentPhases)));
+		} catch (IllegalStateException e) {
+			return; // HTTP/1.0, there is no chunked body to end with a trailer
+		}
+		headers.add(HttpHeaders.TRAILER, SERVER_TIMING);
+	}
+
+	// Waits for this client's turn to merge, the files are discarded if it doesn't come
+	private FairMergeScheduler.Slot schedule(final String prefix, final String client, final int files) {
+		long start = System.nanoTime();
+		FairMergeScheduler.Slot slot = null;
+		try {
+			slot = mergeScheduler.acquire(client, files, storageService.totalBytesToMerge(prefix));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		requestTimelines.record(prefix, "queue", start);
+		if (slot == null) {
+			storageService.discardFiles(prefix);
+			throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many merges queued, try again later");
+		}
+		return slot;
+	}
+
+	// Merges are queued per API key when one is sent, per client address otherwise.
+	// Both are hashed so that neither keys nor end-user addresses show up in the scheduler statistics.
+	static String clientKey(final HttpServletRequest request) {
+		String apiKey = request.getHeader(API_KEY);
+		if (apiKey == null || apiKey.isEmpty()) {
+			return "addr-" + shortHash(request.getRemoteAddr());
+		}
+		return "key-" + shortHash(apiKey);
+	}
+
+	private static String shortHash(final String value) {
+		return DigestUtils.md5DigestAsHex(value.getBytes(StandardCharsets.UTF_8)).substring(0, 12);
+	}
 
-			return new ResponseEntity<>(mergedPdfFile.content(), headers, HttpStatus.OK);
-		} else { // no files to merge
-			return ResponseEntity.noContent().build();
+	private HttpHeaders pdfHeaders(final String filename, final RequestTimeline timeline, final ImageOptimizer.Report savings) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_PDF);
+		// Ensure filename is properly quoted.
+		headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+		headers.add(SERVER_TIMING, timeline.toServerTiming());
+		if (savings != null) {
+			headers.add(IMAGE_SAVINGS, savings.toString());
 		}
+		return headers;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each phase of one merge request, in the order the phases were first seen.
+ * A phase recorded several times (e.g. storing each uploaded file) accumulates its durations.
+ */
+public class RequestTimeline {
+	private final String id;
+	private final long startNanos;
+	private final Map<String, Long> nanosByPhase = new LinkedHashMap<>();
+
+	public RequestTimeline(String id, long startNanos) {
+		this.id = id;
+		this.startNanos = startNanos;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public synchronized void record(String phase, long nanos) {
+		nanosByPhase.merge(phase, nanos, Long::sum);
+	}
+
+	public synchronized Map<String, Long> getNanosByPhase() {
+		return new LinkedHashMap<>(nanosByPhase);
+	}
+
+	public long getTotalNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	// e.g. "upload;dur=12.3, store;dur=1.0, pdfunite;dur=240.7, total;dur=260.2"
+	public String toServerTiming() {
+		return toServerTiming(Collections.emptySet());
+	}
+
+	// Leaves out phases already sent, e.g. in the headers of a response whose timings end in a trailer
+	public String toServerTiming(Collection<String> sentPhases) {
+		StringBuilder header = new StringBuilder();
+		for (Map.Entry<String, Long> phase : getNanosByPhase().entrySet()) {
+			if (sentPhases.contains(phase.getKey())) {
+				continue;
+			}
+			header.append(phase.getKey()).append(";dur=").append(millis(phase.getValue())).append(", ");
+		}
+		return header.append("total;dur=").append(millis(getTotalNanos())).toString();
+	}
+
+	// One JSON object per request so that log-based tooling can pick the phases apart
+	public String toLogLine() {
+		StringBuilder line = new StringBuilder("{\"event\":\"merge-timeline\",\"id\":\"").append(id).append("\",\"phasesMs\":{");
+		String separator = "";
+		for (Map.Entry<String, Long> phase : getNanosByPhase().entrySet()) {
+			line.append(separator).append('"').append(phase.getKey()).append("\":").append(millis(phase.getValue()));
+			separator = ",";
+		}
+		return line.append("},\"totalMs\":").append(millis(getTotalNanos())).append('}').toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,58 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Timelines of the merge requests in flight, keyed by their idPrefix.
+ * Recording against a prefix that has no timeline (a merge not started by the controller) is a no-op.
+ */
+@Component
+public class RequestTimelines {
+	private static final Logger logger = LoggerFactory.getLogger(RequestTimelines.class);
+
+	private final Map<String, RequestTimeline> timelines = new ConcurrentHashMap<>();
+
+	public RequestTimeline start(String idPrefix, long startNanos) {
+		RequestTimeline timeline = new RequestTimeline(idPrefix, startNanos);
+		timelines.put(idPrefix, timeline);
+		return timeline;
+	}
+
+	// Records the time elapsed since startNanos against the given phase
+	public void record(String idPrefix, String phase, long startNanos) {
+		RequestTimeline timeline = timelines.get(idPrefix);
+		if (timeline != null) {
+			timeline.record(phase, System.nanoTime() - startNanos);
+		}
+	}
+
+	// Stops tracking the request and writes its timeline as a single log line
+	public RequestTimeline finish(String idPrefix) {
+		RequestTimeline timeline = timelines.remove(idPrefix);
+		if (timeline != null) {
+			logger.info(timeline.toLogLine());
+		}
+		return timeline;
+	}
+}
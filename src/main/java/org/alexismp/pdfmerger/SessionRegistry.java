@@ -0,0 +1,48 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Keeps track of the inputs uploaded for each merge session (keyed by idPrefix) and of the name of
+ * its merged output. Implementations backed by shared storage let the steps of a session be served
+ * by different instances, as long as the stored files themselves are on storage all instances can see.
+ */
+public interface SessionRegistry {
+	// Returns true if the session didn't exist yet and was created by this call
+	boolean createSession(String idPrefix);
+
+	// Appends a stored input to the session, preserving upload order
+	void addFile(String idPrefix, Path file, long size);
+
+	// Inputs in upload order, or null if the session doesn't exist
+	List<Path> getFiles(String idPrefix);
+
+	// Total size of the inputs added so far
+	long getTotalBytes(String idPrefix);
+
+	// Forgets the session, its inputs and its output filename
+	void removeSession(String idPrefix);
+
+	void setOutputFilename(String idPrefix, String filename);
+
+	String getOutputFilename(String idPrefix);
+
+	void removeOutputFilename(String idPrefix);
+}
@@ -0,0 +1,266 @@
+
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Registry kept in a directory shared by all instances (an NFS or Filestore mount, or simply a local
+ * directory when running several instances on one machine).
+ * Each session has a manifest listing its inputs, one "size<TAB>absolute path" line per input,
+ * and an output file holding the merged filename. Changes to a session happen under a lock file.
+ * Lock files are not deleted when a session ends, another instance may be waiting on them: they are
+ * reaped with the outputs nobody fetched once they have been left alone for a while.
+ */
+@Component
+@ConditionalOnProperty(name = "pdfmerger.session.registry", havingValue = "shared-fs")
+public class SharedFileSystemSessionRegistry implements SessionRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(SharedFileSystemSessionRegistry.class);
+
+	// File locks are held on behalf of the whole JVM, threads of this JVM have to take turns on top of them
+	private static final ReentrantLock[] LOCAL_LOCKS = new ReentrantLock[64];
+	static {
+		for (int i = 0; i < LOCAL_LOCKS.length; i++) {
+			LOCAL_LOCKS[i] = new ReentrantLock();
+		}
+	}
+
+	private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+
+	private final Path root;
+	private final long reapAfterMillis;
+
+	@Autowired
+	public SharedFileSystemSessionRegistry(@Value("${pdfmerger.session.shared-root:./tmp/.sessions}") String root,
+			@Value("${pdfmerger.session.reap-after-minutes:60}") long reapAfterMinutes) {
+		this(Paths.get(root), TimeUnit.MINUTES.toMillis(reapAfterMinutes));
+	}
+
+	public SharedFileSystemSessionRegistry(Path root) {
+		this(root, TimeUnit.MINUTES.toMillis(60));
+	}
+
+	public SharedFileSystemSessionRegistry(Path root, long reapAfterMillis) {
+		this.root = root;
+		this.reapAfterMillis = reapAfterMillis;
+		try {
+			Files.createDirectories(root);
+		} catch (IOException e) {
+			throw fail("Could not create session registry directory " + root, e);
+		}
+	}
+
+	@Override
+	public boolean createSession(String idPrefix) {
+		return withLock(idPrefix, () -> {
+			Path manifest = manifest(idPrefix);
+			if (Files.exists(manifest)) {
+				return false;
+			}
+			Files.createFile(manifest);
+			return true;
+		});
+	}
+
+	@Override
+	public void addFile(String idPrefix, Path file, long size) {
+		String line = size + "\t" + file.toAbsolutePath() + "\n";
+		withLock(idPrefix, () -> Files.write(manifest(idPrefix), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND));
+	}
+
+	@Override
+	public List<Path> getFiles(String idPrefix) {
+		return withLock(idPrefix, () -> {
+			Path manifest = manifest(idPrefix);
+			if (!Files.exists(manifest)) {
+				return null;
+			}
+			List<Path> files = new ArrayList<>();
+			for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+				files.add(Paths.get(line.substring(line.indexOf('\t') + 1)));
+			}
+			return files;
+		});
+	}
+
+	@Override
+	public long getTotalBytes(String idPrefix) {
+		return withLock(idPrefix, () -> {
+			Path manifest = manifest(idPrefix);
+			if (!Files.exists(manifest)) {
+				return 0L;
+			}
+			long total = 0;
+			for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+				total += Long.parseLong(line.substring(0, line.indexOf('\t')));
+			}
+			return total;
+		});
+	}
+
+	@Override
+	public void removeSession(String idPrefix) {
+		withLock(idPrefix, () -> {
+			Files.deleteIfExists(manifest(idPrefix));
+			return Files.deleteIfExists(output(idPrefix));
+		});
+	}
+
+	@Override
+	public void setOutputFilename(String idPrefix, String filename) {
+		// written aside and moved in place so that other instances, which read it without the lock, never see a partial name
+		Path partial = root.resolve(idPrefix + ".output.partial");
+		withLock(idPrefix, () -> {
+			Files.write(partial, filename.getBytes(StandardCharsets.UTF_8));
+			return Files.move(partial, output(idPrefix), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		});
+	}
+
+	@Override
+	public String getOutputFilename(String idPrefix) {
+		try {
+			return new String(Files.readAllBytes(output(idPrefix)), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw fail("Could not read output filename for " + idPrefix, e);
+		}
+	}
+
+	@Override
+	public void removeOutputFilename(String idPrefix) {
+		withLock(idPrefix, () -> Files.deleteIfExists(output(idPrefix)));
+	}
+
+	// Drops outputs nobody fetched (their instance may be gone) and the lock files of sessions that are over.
+	// Only sessions untouched for reapAfterMillis are reaped, and only under their lock, so that nothing is
+	// waiting on a lock file when it is deleted.
+	@Scheduled(fixedDelay = SWEEP_INTERVAL_MILLIS, initialDelay = SWEEP_INTERVAL_MILLIS)
+	public void reapFinishedSessions() {
+		long cutoff = System.currentTimeMillis() - reapAfterMillis;
+		try (DirectoryStream<Path> lockFiles = Files.newDirectoryStream(root, "*.lock")) {
+			for (Path lockFile : lockFiles) {
+				String name = lockFile.getFileName().toString();
+				String idPrefix = name.substring(0, name.length() - ".lock".length());
+				try {
+					reap(idPrefix, cutoff);
+				} catch (IOException e) {
+					logger.warn("Could not reap session {}", idPrefix, e);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Could not list session registry directory {}", root, e);
+		}
+	}
+
+	private void reap(String idPrefix, long cutoff) throws IOException {
+		ReentrantLock localLock = localLock(idPrefix);
+		if (!localLock.tryLock()) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(lockFile(idPrefix), StandardOpenOption.WRITE);
+				FileLock fileLock = channel.tryLock()) {
+			if (fileLock == null) {
+				return;
+			}
+			Path output = output(idPrefix);
+			if (Files.exists(output) && Files.getLastModifiedTime(output).toMillis() < cutoff) {
+				logger.info("Discarded the output name of {}, it was never fetched", idPrefix);
+				Files.delete(output);
+			}
+			if (!Files.exists(manifest(idPrefix)) && !Files.exists(output)
+					&& Files.getLastModifiedTime(lockFile(idPrefix)).toMillis() < cutoff) {
+				Files.delete(lockFile(idPrefix));
+			}
+		} catch (NoSuchFileException e) {
+			// reaped meanwhile
+		} finally {
+			localLock.unlock();
+		}
+	}
+
+	private Path manifest(String idPrefix) {
+		return root.resolve(idPrefix + ".files");
+	}
+
+	private Path output(String idPrefix) {
+		return root.resolve(idPrefix + ".output");
+	}
+
+	private Path lockFile(String idPrefix) {
+		return root.resolve(idPrefix + ".lock");
+	}
+
+	private static ReentrantLock localLock(String idPrefix) {
+		return LOCAL_LOCKS[Math.floorMod(idPrefix.hashCode(), LOCAL_LOCKS.length)];
+	}
+
+	private <T> T withLock(String idPrefix, IOAction<T> action) {
+		ReentrantLock localLock = localLock(idPrefix);
+		localLock.lock();
+		try {
+			while (true) {
+				Path lockFile = lockFile(idPrefix);
+				try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+						FileLock fileLock = channel.lock()) {
+					// the reaper may have deleted the file while we waited for it, lock the new one then
+					if (Files.exists(lockFile)) {
+						return action.run();
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw fail("Session registry operation failed for " + idPrefix, e);
+		} finally {
+			localLock.unlock();
+		}
+	}
+
+	private static ResponseStatusException fail(String msg, IOException e) {
+		logger.error(msg, e);
+		return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, msg, e);
+	}
+
+	@FunctionalInterface
+	private interface IOAction<T> {
+		T run() throws IOException;
+	}
+}
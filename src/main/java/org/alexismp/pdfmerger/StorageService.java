@@ -16,12 +16,36 @@
  */
  package org.alexismp.pdfmerger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
 import org.springframework.web.multipart.MultipartFile;
 
 public interface StorageService {
 	void init();
 	void storePDF(MultipartFile file, String idPrefix);
+	// Moves a file received by other means (e.g. a chunked upload) into the session
+	void storePDF(Path uploadedFile, String filename, String idPrefix);
+	// Copies a document of the given length from a stream (e.g. a headless request body)
+	void storePDF(InputStream content, long length, String filename, String idPrefix);
+	// Adds a file uploaded by an earlier request, referenced by the SHA-256 of its content (lowercase hex)
+	void storeKnownPDF(String sha256, String idPrefix);
+	boolean isKnownPDF(String sha256);
 	MergedPdfFile getMergedPDF(String idPrefix); // Changed return type
-	void mergeFiles(String idPrefix);
+	void mergeFiles(String idPrefix, boolean linearize);
+	default void mergeFiles(String idPrefix) {
+		mergeFiles(idPrefix, false);
+	}
+	// Recompresses oversized images of the session's files before they are merged
+	ImageOptimizer.Report optimizeImages(String idPrefix);
 	int numberOfFilesToMerge(String idPrefix);
+	long totalBytesToMerge(String idPrefix);
+	// Deletes the session's files without merging them
+	void discardFiles(String idPrefix);
+	// Name the merged document of this session will get
+	String getMergedFilename(String idPrefix);
+	// Merges the session's files, writing the result to out while it is being produced
+	void streamMergedPDF(String idPrefix, OutputStream out) throws IOException;
 }
\ No newline at end of file
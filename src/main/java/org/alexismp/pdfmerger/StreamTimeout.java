@@ -0,0 +1,89 @@
+/*
+ * Copyright 2002-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alexismp.pdfmerger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Limits how long a streamed merge may write its response after the request thread has returned.
+ * Once the response has started, Spring's 503 for a timeout can't be sent and the container would end
+ * the body as if it were complete. The timeout fails the request with an exception instead, so that the
+ * container closes the connection without ending the body, and interrupts the thread writing the response,
+ * which stops its pdfunite.
+ */
+@Component
+public class StreamTimeout implements WebMvcConfigurer, CallableProcessingInterceptor {
+	private static final String WRITER_ATTRIBUTE = StreamTimeout.class.getName() + ".writer";
+
+	private final Duration timeout;
+
+	public StreamTimeout(@Value("${pdfmerger.stream.timeout:300s}") Duration timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		configurer.setDefaultTimeout(timeout.toMillis());
+		configurer.registerCallableInterceptors(this);
+	}
+
+	@Override
+	public <T> void preProcess(NativeWebRequest request, Callable<T> task) {
+		request.setAttribute(WRITER_ATTRIBUTE, new AtomicReference<>(Thread.currentThread()), RequestAttributes.SCOPE_REQUEST);
+	}
+
+	@Override
+	public <T> void postProcess(NativeWebRequest request, Callable<T> task, Object concurrentResult) {
+		AtomicReference<Thread> writer = writer(request);
+		if (writer != null) {
+			// under the lock, so that an interrupt can't reach the next task this pooled thread runs
+			synchronized (writer) {
+				writer.set(null);
+				Thread.interrupted();
+			}
+		}
+	}
+
+	@Override
+	public <T> Object handleTimeout(NativeWebRequest request, Callable<T> task) {
+		AtomicReference<Thread> writer = writer(request);
+		if (writer != null) {
+			synchronized (writer) {
+				Thread thread = writer.get();
+				if (thread != null) {
+					thread.interrupt();
+				}
+			}
+		}
+		return new IOException("Streamed response timed out after " + timeout);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static AtomicReference<Thread> writer(NativeWebRequest request) {
+		return (AtomicReference<Thread>) request.getAttribute(WRITER_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+	}
+}
@@ -0,0 +1,122 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares the memory used while storing an upload and reading a merged document back:
+ * the JDK's Files.copy and Files.readAllBytes, the storage service with buffers allocated per copy
+ * (a pool with no room) and the storage service with the pool.
+ * The array holding the merged document is allocated in every case, it's what is sent to the client,
+ * so the pool allocates about as much heap as the JDK calls. What it saves is direct memory: the JDK
+ * reads through a temporary direct buffer as large as the file, which every thread doing so then keeps,
+ * where the pool's buffers are bounded and shared by all threads.
+ */
+@Tag("benchmark")
+class BufferPoolBenchmarkTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(BufferPoolBenchmarkTests.class);
+
+    private static final int ROUNDS = 50;
+    private static final int DOCUMENT_SIZE = 2 * 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void benchmarkAllocations() throws IOException {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        byte[] document = TestPdfs.withPages(100, DOCUMENT_SIZE / 100);
+        MockMultipartFile upload = new MockMultipartFile("files", "scan.pdf", MediaType.APPLICATION_PDF_VALUE, document);
+
+        long directBefore = directMemoryUsed();
+        long jdk = allocatedPerRound(threads, () -> {
+            Path stored = tempDir.resolve("jdk.pdf");
+            Files.copy(upload.getInputStream(), stored, StandardCopyOption.REPLACE_EXISTING);
+            assertEquals(document.length, Files.readAllBytes(stored).length);
+        });
+        long jdkDirect = directMemoryUsed() - directBefore;
+
+        LocalStorageService unpooled = service("unpooled", new BufferPool(0));
+        long perCopy = allocatedPerRound(threads, () -> storeAndReadBack(unpooled, upload, document.length));
+
+        BufferPool pool = new BufferPool();
+        LocalStorageService pooled = service("pooled", pool);
+        long pooledBytes = allocatedPerRound(threads, () -> storeAndReadBack(pooled, upload, document.length));
+
+        logger.info("heap allocated per round for a {} bytes document: JDK {}, per-copy buffers {}, pooled {}",
+                document.length, jdk, perCopy, pooledBytes);
+        BufferPool.Stats stats = pool.getStats();
+        logger.info("direct memory kept: JDK {}, pooled {} ({} hits, {} misses, {} outstanding)",
+                jdkDirect, stats.getPooledBytes(), stats.getHits(), stats.getMisses(), stats.getOutstanding());
+
+        assertTrue(pooledBytes < perCopy, "Pooling should allocate less than a buffer per copy.");
+        assertTrue(stats.getPooledBytes() < jdkDirect, "The pool should keep less direct memory than the JDK does per thread.");
+        assertEquals(0, stats.getOutstanding(), "All buffers should have been released.");
+        assertTrue(stats.getHits() >= 2 * ROUNDS, "After the first round every buffer should come from the pool.");
+    }
+
+    private LocalStorageService service(String name, BufferPool pool) throws IOException {
+        LocalStorageService service = new LocalStorageService(Files.createDirectories(tempDir.resolve(name)),
+                new MergeAdmissionController(), new InMemorySessionRegistry(), new RequestTimelines(), new ImageOptimizer(),
+                new InputPreflight(), new ContentStore(), pool);
+        service.init();
+        return service;
+    }
+
+    // Stores the upload, then reads it back as if pdfunite had written it as the merged document
+    private static void storeAndReadBack(LocalStorageService service, MockMultipartFile upload, int expectedLength) throws IOException {
+        service.storePDF(upload, "round");
+        Path stored = service.getFilesToMerge("round").get(0);
+        service.setGeneratedFilenameForPrefix("round", "merged.pdf");
+        Files.move(stored, service.getRootLocation().resolve("round-merged.pdf"));
+        assertEquals(expectedLength, service.getMergedPDF("round").content().length);
+        service.discardFiles("round");
+    }
+
+    private static long allocatedPerRound(com.sun.management.ThreadMXBean threads, IORunnable round) throws IOException {
+        round.run(); // warm up
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ROUNDS; i++) {
+            round.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / ROUNDS;
+    }
+
+    private static long directMemoryUsed() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(bean -> bean.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Measuring allocations needs a HotSpot compatible JVM");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "Measuring allocations isn't supported by this JVM");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+}
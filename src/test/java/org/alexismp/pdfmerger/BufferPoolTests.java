@@ -0,0 +1,64 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTests {
+
+    @Test
+    void testAcquire_PicksSizeClass() {
+        BufferPool pool = new BufferPool(10 * 1024 * 1024);
+
+        try (BufferPool.PooledBuffer small = pool.acquire(0);
+             BufferPool.PooledBuffer medium = pool.acquire(20_000);
+             BufferPool.PooledBuffer huge = pool.acquire(100 * 1024 * 1024)) {
+            assertEquals(16 * 1024, small.buffer().capacity());
+            assertEquals(64 * 1024, medium.buffer().capacity());
+            assertEquals(1024 * 1024, huge.buffer().capacity(), "Large requests should get the largest size class.");
+            assertTrue(small.buffer().isDirect());
+            assertEquals(3, pool.getStats().getOutstanding());
+        }
+        assertEquals(0, pool.getStats().getOutstanding());
+    }
+
+    @Test
+    void testAcquire_ReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(10 * 1024 * 1024);
+
+        BufferPool.PooledBuffer first = pool.acquire(1000);
+        first.buffer().put((byte) 42);
+        first.close();
+        first.close(); // releasing twice must not pool the buffer twice
+        BufferPool.PooledBuffer second = pool.acquire(1000);
+        BufferPool.PooledBuffer third = pool.acquire(1000);
+
+        assertSame(first.buffer(), second.buffer());
+        assertNotSame(second.buffer(), third.buffer());
+        assertEquals(0, second.buffer().position(), "Reused buffers should be cleared.");
+        BufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(2, stats.getOutstanding());
+        assertEquals(2 * 16 * 1024, stats.getPooledBytes());
+    }
+
+    @Test
+    void testAcquire_HeapBuffersBeyondCeiling() {
+        BufferPool pool = new BufferPool(16 * 1024);
+
+        try (BufferPool.PooledBuffer pooled = pool.acquire(1);
+             BufferPool.PooledBuffer overflow = pool.acquire(1)) {
+            assertTrue(pooled.buffer().isDirect());
+            assertFalse(overflow.buffer().isDirect(), "Buffers beyond the ceiling should come from the heap.");
+            assertEquals(16 * 1024, pool.getStats().getPooledBytes());
+        }
+
+        // only the direct buffer is kept
+        try (BufferPool.PooledBuffer again = pool.acquire(1);
+             BufferPool.PooledBuffer overflowAgain = pool.acquire(1)) {
+            assertTrue(again.buffer().isDirect());
+            assertFalse(overflowAgain.buffer().isDirect());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedUploadServiceTests {
+
+    private static final String SESSION = "5f0c4a3e-8f5e-4c43-9a55-7f3c1c6b2d10";
+
+    private LocalStorageService storageService;
+    private ChunkedUploadService uploadService;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        storageService = new LocalStorageService(tempDir);
+        storageService.init();
+        uploadService = new ChunkedUploadService(tempDir.resolve("uploads"), storageService, 1024);
+    }
+
+    @Test
+    void testChunksAreAssembledAndAddedToSession() throws Exception {
+        byte[] content = TestPdfs.withPages(3, 500);
+        ChunkedUploadService.ChunkedUpload upload = uploadService.create(SESSION, "big.pdf", content.length, checksum(content));
+
+        int offset = 0;
+        while (offset < content.length) {
+            int end = Math.min(offset + 1000, content.length);
+            upload = uploadService.append(upload.getId(), offset, new ByteArrayInputStream(Arrays.copyOfRange(content, offset, end)));
+            assertEquals(end, upload.getOffset());
+            offset = end;
+        }
+
+        assertTrue(upload.isComplete());
+        List<Path> files = storageService.getFilesToMerge(SESSION);
+        assertEquals(1, files.size(), "The completed upload should have been added to its session.");
+        assertArrayEquals(content, Files.readAllBytes(files.get(0)));
+        assertEquals(0, Files.list(tempDir.resolve("uploads")).filter(file -> !file.toString().endsWith(".session")).count(),
+                "Upload scratch files should be removed once complete.");
+        assertTrue(Files.exists(tempDir.resolve("uploads").resolve(SESSION + ".session")), "The session should wait for its merge.");
+    }
+
+    @Test
+    void testInterruptedChunkCanBeResumed() {
+        byte[] content = TestPdfs.withPages(1, 200);
+        ChunkedUploadService.ChunkedUpload upload = uploadService.create(SESSION, "resumed.pdf", content.length, null);
+
+        // The connection drops after 100 bytes of the chunk
+        InputStream dropping = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                if (position == 100) {
+                    throw new IOException("connection reset");
+                }
+                return content[position++] & 0xff;
+            }
+        };
+        assertThrows(ResponseStatusException.class, () -> uploadService.append(upload.getId(), 0, dropping));
+
+        // HEAD tells the client where to resume from
+        long resumeFrom = uploadService.get(upload.getId()).getOffset();
+        assertEquals(100, resumeFrom, "Bytes received before the failure should be kept.");
+
+        ResponseStatusException conflict = assertThrows(ResponseStatusException.class,
+                () -> uploadService.append(upload.getId(), 0, new ByteArrayInputStream(content)));
+        assertEquals(HttpStatus.CONFLICT, conflict.getStatus(), "Chunks must start where the upload stopped.");
+
+        ChunkedUploadService.ChunkedUpload resumed = uploadService.append(upload.getId(), resumeFrom,
+                new ByteArrayInputStream(Arrays.copyOfRange(content, 100, content.length)));
+        assertTrue(resumed.isComplete());
+        assertEquals(1, storageService.numberOfFilesToMerge(SESSION));
+    }
+
+    @Test
+    void testChecksumMismatchDiscardsUpload() throws Exception {
+        byte[] content = TestPdfs.withPages(1, 10);
+        ChunkedUploadService.ChunkedUpload upload = uploadService.create(SESSION, "corrupt.pdf", content.length, checksum("other".getBytes()));
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> uploadService.append(upload.getId(), 0, new ByteArrayInputStream(content)));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        assertEquals(0, storageService.numberOfFilesToMerge(SESSION));
+        assertThrows(ResponseStatusException.class, () -> uploadService.get(upload.getId()), "A corrupt upload should be discarded.");
+    }
+
+    @Test
+    void testOversizedChunkIsRejected() {
+        ChunkedUploadService.ChunkedUpload upload = uploadService.create(SESSION, "a.pdf", 4096, null);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> uploadService.append(upload.getId(), 0, new ByteArrayInputStream(new byte[2048])));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exception.getStatus());
+        assertEquals(0, uploadService.get(upload.getId()).getOffset(), "A rejected chunk should not be kept.");
+    }
+
+    @Test
+    void testInvalidIdsAndNamesAreRejected() {
+        assertThrows(ResponseStatusException.class, () -> uploadService.get("../../etc/passwd"));
+        assertThrows(ResponseStatusException.class, () -> uploadService.create(SESSION, "../a.pdf", 10, null));
+        assertThrows(ResponseStatusException.class, () -> uploadService.create(SESSION, "a.txt", 10, null));
+    }
+
+    @Test
+    void testUploadLengthIsLimited() {
+        ChunkedUploadService limitedService = new ChunkedUploadService(tempDir.resolve("uploads"), storageService, 1024, 4096,
+                60_000, new BufferPool());
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> limitedService.create(SESSION, "huge.pdf", 4097, null));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exception.getStatus(), "Oversized uploads should be rejected before any chunk is sent.");
+        assertEquals(4096, limitedService.create(SESSION, "fits.pdf", 4096, null).getLength());
+    }
+
+    @Test
+    void testLastChunkIsOnlyAddedToTheSessionOnce() {
+        byte[] content = TestPdfs.withPages(1, 10);
+        ChunkedUploadService.ChunkedUpload upload = uploadService.create(SESSION, "once.pdf", content.length, null);
+        assertTrue(uploadService.append(upload.getId(), 0, new ByteArrayInputStream(content)).isComplete());
+
+        // a retry of the last chunk, e.g. after the response was lost
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> uploadService.append(upload.getId(), content.length, new ByteArrayInputStream(new byte[0])));
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+        assertEquals(1, storageService.numberOfFilesToMerge(SESSION));
+    }
+
+    private static String checksum(byte[] content) throws Exception {
+        return "sha256 " + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    @Test
+    void testAbandonedUploadsExpireWithTheirSession() throws Exception {
+        ChunkedUploadService expiringService = new ChunkedUploadService(tempDir.resolve("uploads"), storageService, 1024, 60_000);
+        byte[] small = TestPdfs.withPages(1, 10);
+        ChunkedUploadService.ChunkedUpload done = expiringService.create(SESSION, "done.pdf", small.length, null);
+        expiringService.append(done.getId(), 0, new ByteArrayInputStream(small));
+        ChunkedUploadService.ChunkedUpload abandoned = expiringService.create(SESSION, "abandoned.pdf", 2000, null);
+        expiringService.append(abandoned.getId(), 0, new ByteArrayInputStream(new byte[500]));
+
+        String otherSession = "0b7e3c2a-1d4f-4e5a-8b6c-9d0e1f2a3b4c";
+        ChunkedUploadService.ChunkedUpload active = expiringService.create(otherSession, "active.pdf", 2000, null);
+        ChunkedUploadService.ChunkedUpload stale = expiringService.create(otherSession, "stale.pdf", 2000, null);
+
+        long longAgo = System.currentTimeMillis() - 120_000;
+        for (Path part : Files.newDirectoryStream(tempDir.resolve("uploads"), "*.part")) {
+            if (!part.getFileName().toString().startsWith(active.getId())) {
+                Files.setLastModifiedTime(part, java.nio.file.attribute.FileTime.fromMillis(longAgo));
+            }
+        }
+        expiringService.expireAbandonedUploads();
+
+        ResponseStatusException gone = assertThrows(ResponseStatusException.class, () -> expiringService.get(abandoned.getId()));
+        assertEquals(HttpStatus.NOT_FOUND, gone.getStatus());
+        assertThrows(ResponseStatusException.class, () -> expiringService.get(stale.getId()));
+        assertNull(storageService.getFilesToMerge(SESSION), "A session that can't be completed anymore should be discarded.");
+
+        assertEquals(0, expiringService.get(active.getId()).getOffset(), "Uploads receiving chunks should be kept.");
+        assertEquals(2, Files.list(tempDir.resolve("uploads")).count(), "Only the active upload should be left.");
+    }
+
+    @Test
+    void testCompletedSessionsThatAreNeverMergedExpire() throws Exception {
+        ChunkedUploadService expiringService = new ChunkedUploadService(tempDir.resolve("uploads"), storageService, 1024, 60_000);
+        byte[] small = TestPdfs.withPages(1, 10);
+        ChunkedUploadService.ChunkedUpload forgotten = expiringService.create(SESSION, "forgotten.pdf", small.length, null);
+        expiringService.append(forgotten.getId(), 0, new ByteArrayInputStream(small));
+        String claimedSession = "0b7e3c2a-1d4f-4e5a-8b6c-9d0e1f2a3b4c";
+        ChunkedUploadService.ChunkedUpload merging = expiringService.create(claimedSession, "merging.pdf", small.length, null);
+        expiringService.append(merging.getId(), 0, new ByteArrayInputStream(small));
+
+        expiringService.claimSession(claimedSession); // a merge of this session has started
+        long longAgo = System.currentTimeMillis() - 120_000;
+        try (DirectoryStream<Path> sessions = Files.newDirectoryStream(tempDir.resolve("uploads"), "*.session")) {
+            for (Path session : sessions) {
+                Files.setLastModifiedTime(session, FileTime.fromMillis(longAgo));
+            }
+        }
+        expiringService.expireAbandonedUploads();
+
+        assertNull(storageService.getFilesToMerge(SESSION), "A session nobody merges should be discarded.");
+        assertEquals(1, storageService.numberOfFilesToMerge(claimedSession), "A session being merged should be left to its merge.");
+        assertEquals(0, Files.list(tempDir.resolve("uploads")).count());
+    }
+}
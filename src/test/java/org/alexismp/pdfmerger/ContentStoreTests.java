@@ -0,0 +1,130 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentStoreTests {
+
+    private static final String HASH_A = repeat('a');
+    private static final String HASH_B = repeat('b');
+    private static final String HASH_C = repeat('c');
+
+    @TempDir
+    Path tempDir;
+
+    private Path uploads;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        uploads = Files.createDirectories(tempDir.resolve("uploads"));
+    }
+
+    @Test
+    void testLinkTo_ReturnsOriginalNameAndContent() throws IOException {
+        ContentStore store = store(60_000, 1000);
+        Path upload = upload("terms.pdf", 10);
+        store.add(HASH_A, upload, "terms.pdf", 10);
+        Files.delete(upload); // the session is cleaned up, the store keeps its own link
+
+        Path target = tempDir.resolve("session.pdf");
+        assertEquals("terms.pdf", store.linkTo(HASH_A, target));
+        assertEquals(10, Files.size(target));
+        assertNull(store.linkTo(HASH_B, tempDir.resolve("unknown.pdf")), "Unknown content should not be linked.");
+    }
+
+    @Test
+    void testAdd_EvictsLeastRecentlyUsedBeyondCap() throws IOException {
+        ContentStore store = store(60_000, 25);
+        store.add(HASH_A, upload("a.pdf", 10), "a.pdf", 10);
+        store.add(HASH_B, upload("b.pdf", 10), "b.pdf", 10);
+        assertNotNull(store.linkTo(HASH_A, tempDir.resolve("used.pdf"))); // b is now the least recently used
+
+        store.add(HASH_C, upload("c.pdf", 10), "c.pdf", 10);
+
+        assertTrue(store.contains(HASH_A));
+        assertFalse(store.contains(HASH_B), "The least recently used entry should have been evicted.");
+        assertTrue(store.contains(HASH_C));
+        assertEquals(20, store.getTotalBytes());
+        try (Stream<Path> stored = Files.walk(tempDir.resolve("content"))) {
+            assertTrue(stored.noneMatch(file -> file.getFileName().toString().startsWith(HASH_B)), "Evicted content should be deleted.");
+        }
+    }
+
+    @Test
+    void testContains_ExpiresAfterTtl() throws Exception {
+        ContentStore store = store(50, 1000);
+        store.add(HASH_A, upload("a.pdf", 10), "a.pdf", 10);
+        assertTrue(store.contains(HASH_A));
+
+        Thread.sleep(100);
+
+        assertFalse(store.contains(HASH_A), "Content not used within the TTL should expire.");
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testDisabledStoreKeepsNothing() throws IOException {
+        ContentStore store = new ContentStore();
+        store.add(HASH_A, upload("a.pdf", 10), "a.pdf", 10);
+
+        assertFalse(store.isEnabled());
+        assertFalse(store.contains(HASH_A));
+        assertNull(store.linkTo(HASH_A, tempDir.resolve("target.pdf")));
+    }
+
+    @Test
+    void testInstancesOnSharedStorageKeepTheirOwnFiles() throws IOException {
+        ContentStore first = store(60_000, 1000);
+        first.add(HASH_A, upload("a.pdf", 10), "a.pdf", 10);
+        ContentStore second = store(60_000, 1000); // starts while the first one is running
+
+        assertEquals("a.pdf", first.linkTo(HASH_A, tempDir.resolve("first.pdf")), "Starting an instance must not delete the files of another.");
+        assertNull(second.linkTo(HASH_A, tempDir.resolve("second.pdf")), "Each instance has its own index.");
+
+        first.destroy();
+        second.destroy();
+        try (Stream<Path> left = Files.list(tempDir.resolve("content"))) {
+            assertEquals(0, left.count(), "Stopped instances should leave nothing behind.");
+        }
+    }
+
+    @Test
+    void testInit_DeletesLeftoversOfInstancesThatAreGone() throws IOException {
+        Path content = Files.createDirectories(tempDir.resolve("content"));
+        Path leftover = Files.createDirectories(content.resolve("crashed"));
+        Files.write(leftover.resolve(HASH_A + "-1"), new byte[10]);
+        Files.createFile(content.resolve("crashed.lock")); // nobody holds its lock
+
+        ContentStore store = store(60_000, 1000);
+
+        assertFalse(Files.exists(leftover));
+        assertFalse(Files.exists(content.resolve("crashed.lock")));
+        store.destroy();
+    }
+
+    private ContentStore store(long ttlMillis, long maxBytes) throws IOException {
+        ContentStore store = new ContentStore(tempDir.resolve("content"), ttlMillis, maxBytes);
+        store.init();
+        return store;
+    }
+
+    private Path upload(String name, int size) throws IOException {
+        return Files.write(uploads.resolve(name), new byte[size]);
+    }
+
+    private static String repeat(char c) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            hex.append(c);
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairMergeSchedulerTests {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void testCost_CountsFilesAndMegabytes() {
+        FairMergeScheduler scheduler = new FairMergeScheduler(1, 16, MB, 0);
+
+        assertEquals(1, scheduler.cost(0, 0), "Every merge should cost something.");
+        assertEquals(3, scheduler.cost(2, 1), "A started megabyte should count as a whole unit.");
+        assertEquals(500, scheduler.cost(300, 200 * MB));
+    }
+
+    @Test
+    void testAcquire_SmallMergeOvertakesQueuedHeavyMerges() throws Exception {
+        FairMergeScheduler scheduler = new FairMergeScheduler(1, 16, MB, TimeUnit.SECONDS.toMillis(10));
+        FairMergeScheduler.Slot running = scheduler.acquire("batch", 1, 0);
+
+        // the batch client queues three heavy merges, then an interactive client a small one
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            waiters.add(waitFor(scheduler, "batch", 300, 200 * MB, "heavy" + i, order));
+        }
+        waiters.add(waitFor(scheduler, "interactive", 2, MB, "small", order));
+        awaitQueued(scheduler, 4);
+
+        running.close();
+        for (Thread waiter : waiters) {
+            waiter.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        assertEquals(4, order.size());
+        assertEquals("small", order.get(0), "The small merge should not wait for the heavy ones.");
+        assertEquals(0, scheduler.getRunning());
+        assertTrue(scheduler.getClientStats().isEmpty(), "Idle clients should be forgotten.");
+    }
+
+    @Test
+    void testAcquire_TimesOutAndLeavesTheQueue() throws InterruptedException {
+        FairMergeScheduler scheduler = new FairMergeScheduler(1, 16, MB, 50);
+        FairMergeScheduler.Slot running = scheduler.acquire("a", 1, 0);
+
+        assertNull(scheduler.acquire("b", 1, 0), "No slot should be given while the only one is taken.");
+        assertFalse(scheduler.getClientStats().containsKey("b"), "A merge that gave up should not stay queued.");
+
+        running.close();
+        running.close(); // closing twice must not free two slots
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    void testGetClientStats() throws Exception {
+        FairMergeScheduler scheduler = new FairMergeScheduler(1, 16, MB, TimeUnit.SECONDS.toMillis(10));
+        FairMergeScheduler.Slot running = scheduler.acquire("a", 1, 0);
+        Thread waiter = waitFor(scheduler, "b", 40, 0, "b", Collections.synchronizedList(new ArrayList<>()));
+        awaitQueued(scheduler, 1);
+
+        Map<String, FairMergeScheduler.ClientStats> stats = scheduler.getClientStats();
+        assertEquals(1, stats.get("a").getRunning());
+        assertEquals(1, stats.get("a").getDispatched());
+        assertEquals(1, stats.get("b").getQueued());
+        assertEquals(40, stats.get("b").getQueuedCost());
+
+        running.close();
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    // Starts a thread that queues a merge and records when it got its slot, releasing it right away
+    private static Thread waitFor(FairMergeScheduler scheduler, String client, int files, long bytes,
+                                  String name, List<String> order) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            started.countDown();
+            try (FairMergeScheduler.Slot slot = scheduler.acquire(client, files, bytes)) {
+                order.add(name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        started.await();
+        return thread;
+    }
+
+    private static void awaitQueued(FairMergeScheduler scheduler, int queued) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (scheduler.getClientStats().values().stream().mapToInt(FairMergeScheduler.ClientStats::getQueued).sum() < queued) {
+            assertTrue(System.currentTimeMillis() < deadline, "Merges should have been queued.");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.springframework.util.StreamUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FramedInputsTests {
+
+    @Test
+    void testNext_ReadsFramesInOrder() throws IOException {
+        FramedInputs inputs = new FramedInputs(new ByteArrayInputStream(frames("première.pdf", "one", "second.pdf", "two!")), 100);
+
+        assertTrue(inputs.next());
+        assertEquals("première.pdf", inputs.getName());
+        assertEquals(3, inputs.getLength());
+        assertEquals("one", new String(StreamUtils.copyToByteArray(inputs.content()), StandardCharsets.UTF_8));
+
+        assertTrue(inputs.next());
+        assertEquals("second.pdf", inputs.getName());
+        assertEquals("two!", new String(StreamUtils.copyToByteArray(inputs.content()), StandardCharsets.UTF_8));
+
+        assertFalse(inputs.next(), "The body should end after the last frame.");
+    }
+
+    @Test
+    void testNext_SkipsUnreadContent() throws IOException {
+        FramedInputs inputs = new FramedInputs(new ByteArrayInputStream(frames("a.pdf", "aaaa", "b.pdf", "bb")), 100);
+
+        assertTrue(inputs.next());
+        assertEquals('a', inputs.content().read());
+        assertTrue(inputs.next());
+        assertEquals("b.pdf", inputs.getName());
+    }
+
+    @Test
+    void testContent_TruncatedDocument() throws IOException {
+        byte[] body = frames("a.pdf", "aaaa");
+        FramedInputs inputs = new FramedInputs(new ByteArrayInputStream(Arrays.copyOf(body, body.length - 1)), 100);
+
+        assertTrue(inputs.next());
+        assertThrows(EOFException.class, () -> StreamUtils.copyToByteArray(inputs.content()));
+    }
+
+    @Test
+    void testNext_RejectsBodiesOverTheLimit() throws IOException {
+        FramedInputs inputs = new FramedInputs(new ByteArrayInputStream(frames("a.pdf", "aaaa", "b.pdf", "bbbb")), 6);
+
+        assertTrue(inputs.next());
+        IOException exception = assertThrows(IOException.class, inputs::next);
+        assertTrue(exception.getMessage().contains("6 bytes"));
+    }
+
+    @Test
+    void testWriteHeader_RejectsEmptyName() {
+        assertThrows(IllegalArgumentException.class, () -> FramedInputs.writeHeader(new ByteArrayOutputStream(), "", 1));
+    }
+
+    // Builds a body from name and content pairs
+    private static byte[] frames(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            byte[] content = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+            FramedInputs.writeHeader(out, namesAndContents[i], content.length);
+            out.write(content);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.util.StreamUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Compares the multipart endpoint with the headless one, from a client's point of view, over a real connection.
+ * The storage service is mocked so that only request handling is measured: multipart parsing (which
+ * buffers every part before the controller is called) against frames copied as they arrive.
+ */
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class HeadlessApiBenchmarkTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(HeadlessApiBenchmarkTests.class);
+
+    private static final int ROUNDS = 10;
+    private static final int FILES = 5;
+    private static final int PAGES_PER_FILE = 50; // about 1 MB per file
+    private static final byte[] MERGED = "merged".getBytes(StandardCharsets.US_ASCII);
+
+    @LocalServerPort
+    int port;
+
+    @MockBean
+    private StorageService storageService;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void benchmarkMultipartAgainstHeadless() throws Exception {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            files.add(Files.write(tempDir.resolve("scan" + i + ".pdf"), TestPdfs.withPages(PAGES_PER_FILE, 20_000)));
+        }
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(FILES);
+        when(storageService.getMergedPDF(anyString())).thenReturn(new MergedPdfFile(MERGED, "merged.pdf"));
+        when(storageService.getMergedFilename(anyString())).thenReturn("merged.pdf");
+        doAnswer(invocation -> {
+            StreamUtils.drain(invocation.getArgument(0));
+            return null;
+        }).when(storageService).storePDF(any(InputStream.class), anyLong(), anyString(), anyString());
+        doAnswer(invocation -> {
+            ((OutputStream) invocation.getArgument(1)).write(MERGED);
+            return null;
+        }).when(storageService).streamMergedPDF(anyString(), any());
+        PdfMergerClient client = new PdfMergerClient(URI.create("http://localhost:" + port));
+
+        // warm up both paths before measuring
+        postMultipart(files);
+        readAll(client.merge(files));
+
+        long multipartStart = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertArrayEquals(MERGED, postMultipart(files));
+        }
+        long multipartMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - multipartStart);
+
+        long headlessStart = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertArrayEquals(MERGED, readAll(client.merge(files)));
+        }
+        long headlessMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - headlessStart);
+
+        long bytes = 0;
+        for (Path file : files) {
+            bytes += Files.size(file);
+        }
+        logger.info("{} requests of {} bytes: multipart {} ms, headless {} ms", ROUNDS, bytes, multipartMillis, headlessMillis);
+    }
+
+    private byte[] postMultipart(List<Path> files) throws IOException {
+        String boundary = "benchmark-boundary";
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/pdfmerger").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(64 * 1024);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        try (OutputStream out = connection.getOutputStream()) {
+            for (Path file : files) {
+                out.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\""
+                        + file.getFileName() + "\"\r\nContent-Type: application/pdf\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                Files.copy(file, out);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals(200, connection.getResponseCode());
+        return readAll(connection.getInputStream());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtils.copy(stream, out);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ImageOptimizerTests {
+
+    private final ImageOptimizer optimizer = new ImageOptimizer(150, 75, 300, 4);
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void tearDown() {
+        optimizer.shutdown();
+    }
+
+    @Test
+    void testOptimize_KeepsInputsThatCanNotBeOptimized() throws IOException, InterruptedException {
+        Path broken = tempDir.resolve("broken.pdf");
+        byte[] content = "not really a pdf".getBytes();
+        Files.write(broken, content);
+
+        ImageOptimizer.Report report = optimizer.optimize(Arrays.asList(broken));
+
+        assertArrayEquals(content, Files.readAllBytes(broken), "Inputs that can't be optimized should be left untouched.");
+        assertEquals(content.length, report.getBytesBefore());
+        assertEquals(0, report.getBytesSaved());
+        assertEquals(0, report.getInputsOptimized());
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(1, files.count(), "No intermediate files should be left behind.");
+        }
+    }
+
+    @Test
+    void testOptimize_RewritesInputsInParallel() throws IOException, InterruptedException {
+        assumeTrue(Files.isExecutable(Paths.get("/usr/bin/gs")), "Ghostscript is required for this test");
+        Path first = tempDir.resolve("first.pdf");
+        Path second = tempDir.resolve("second.pdf");
+        Files.write(first, TestPdfs.withPages(5, 20_000));
+        Files.write(second, TestPdfs.withPages(1, 20_000));
+
+        ImageOptimizer.Report report = optimizer.optimize(Arrays.asList(first, second));
+
+        assertTrue(report.getBytesAfter() <= report.getBytesBefore(), "Optimization should never grow the inputs.");
+        String head = new String(Files.readAllBytes(first), StandardCharsets.ISO_8859_1);
+        assertTrue(head.startsWith("%PDF"), "Optimized inputs should still be PDF documents.");
+    }
+
+    @Test
+    void testOptimize_InterruptedLeavesNothingBehind() throws IOException {
+        Path input = tempDir.resolve("input.pdf");
+        byte[] content = TestPdfs.withPages(2, 1_000);
+        Files.write(input, content);
+
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> optimizer.optimize(Arrays.asList(input)));
+
+        assertFalse(Thread.interrupted());
+        assertArrayEquals(content, Files.readAllBytes(input), "An interrupted optimization should leave the input untouched.");
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(1, files.count(), "No intermediate files should be left behind.");
+        }
+    }
+
+    @Test
+    void testReport_ToString() {
+        assertEquals("before=2000; after=500; saved=75.0%; inputs=2", new ImageOptimizer.Report(2000, 500, 2).toString());
+        assertEquals("before=0; after=0; saved=0.0%; inputs=0", new ImageOptimizer.Report(0, 0, 0).toString());
+    }
+}
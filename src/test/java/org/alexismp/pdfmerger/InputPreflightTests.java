@@ -0,0 +1,82 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InputPreflightTests {
+
+    private final InputPreflight preflight = new InputPreflight(true, 4, 2);
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void tearDown() {
+        preflight.shutdown();
+    }
+
+    @Test
+    void testCheck_ValidInputsPass() throws IOException, InterruptedException {
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < 7; i++) { // more inputs than the per-request cap
+            Path input = tempDir.resolve("doc" + i + ".pdf");
+            Files.write(input, TestPdfs.withPages(i + 1, 100));
+            inputs.add(input);
+        }
+
+        assertTrue(preflight.check(inputs).isEmpty());
+    }
+
+    @Test
+    void testCheck_ProblemsAreReportedInInputOrder() throws IOException, InterruptedException {
+        Path valid = tempDir.resolve("valid.pdf");
+        Files.write(valid, TestPdfs.withPages(2, 100));
+        Path notPdf = tempDir.resolve("notpdf.pdf");
+        Files.write(notPdf, "just some text".getBytes());
+        byte[] complete = TestPdfs.withPages(3, 2_000);
+        Path truncated = tempDir.resolve("truncated.pdf");
+        Files.write(truncated, Arrays.copyOf(complete, complete.length / 2));
+        Path missing = tempDir.resolve("missing.pdf");
+
+        List<String> problems = preflight.check(Arrays.asList(truncated, valid, missing, notPdf));
+
+        assertEquals(Arrays.asList("truncated.pdf is truncated", "missing.pdf could not be read",
+                "notpdf.pdf is not a PDF document"), problems);
+    }
+
+    @Test
+    void testCheckOne_BrokenXrefOffsetIsNotFatal() throws IOException {
+        String pdf = new String(TestPdfs.withPages(1, 100), StandardCharsets.ISO_8859_1);
+        Path input = tempDir.resolve("badxref.pdf");
+        Files.write(input, pdf.replaceFirst("startxref\n\\d+", "startxref\n1").getBytes(StandardCharsets.ISO_8859_1));
+
+        assertNull(InputPreflight.checkOne(input), "pdfunite can reconstruct a broken cross-reference table.");
+    }
+
+    @Test
+    void testCheck_BrokenXrefIsRepairedOrLeftForPdfunite() throws IOException, InterruptedException {
+        String pdf = new String(TestPdfs.withPages(2, 100), StandardCharsets.ISO_8859_1);
+        Path input = tempDir.resolve("badxref.pdf");
+        Files.write(input, pdf.replaceFirst("startxref\n\\d+", "startxref\n1").getBytes(StandardCharsets.ISO_8859_1));
+
+        assertTrue(preflight.check(Arrays.asList(input)).isEmpty(), "A broken cross-reference table doesn't reject the merge.");
+
+        // rewritten by qpdf when it is installed, untouched otherwise
+        assertNull(InputPreflight.checkOne(input));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(1, files.count(), "No intermediate files should be left behind.");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Estimates time-to-first-page of regular and linearized merges, nothing is downloaded or rendered.
+ * A viewer can't render a regular PDF until it has the cross-reference table at the end of the file,
+ * while a linearized one can be rendered once the first page section (the /E offset) has arrived.
+ * The estimate is the measured server time plus the bytes a viewer needs divided by an assumed link
+ * bandwidth, it leaves out latency, range requests and rendering.
+ * Needs pdfunite and qpdf, the benchmark is skipped when they aren't installed.
+ */
+@Tag("benchmark")
+class LinearizationBenchmarkTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(LinearizationBenchmarkTests.class);
+
+    private static final double BANDWIDTH_BYTES_PER_SECOND = 10_000_000 / 8.0; // a 10 Mbit/s client
+    private static final Pattern LINEARIZED_FIRST_PAGE_END = Pattern.compile("/Linearized[^>]*?/E\\s+(\\d+)");
+
+    private LocalStorageService storageService;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(Files.isExecutable(Paths.get("/usr/bin/pdfunite")), "pdfunite is required for this benchmark");
+        assumeTrue(Files.isExecutable(Paths.get("/usr/bin/qpdf")), "qpdf is required for this benchmark");
+        storageService = new LocalStorageService(tempDir);
+        storageService.init();
+    }
+
+    @Test
+    void estimateTimeToFirstPage() {
+        Result regular = merge("regular", false);
+        Result linearized = merge("linearized", true);
+
+        logger.info("regular:    {} bytes, merge {} ms, first page after {} bytes -> estimated {} ms",
+                regular.size, regular.serverMillis, regular.bytesBeforeFirstPage, regular.estimatedTimeToFirstPageMillis());
+        logger.info("linearized: {} bytes, merge {} ms, first page after {} bytes -> estimated {} ms",
+                linearized.size, linearized.serverMillis, linearized.bytesBeforeFirstPage, linearized.estimatedTimeToFirstPageMillis());
+
+        assertEquals(regular.size, regular.bytesBeforeFirstPage, "A regular PDF needs to be fully downloaded.");
+        assertTrue(linearized.bytesBeforeFirstPage < linearized.size / 2,
+                "A linearized PDF should expose its first page well before the end of the file.");
+    }
+
+    private Result merge(String idPrefix, boolean linearize) {
+        for (int i = 0; i < 5; i++) {
+            storageService.storePDF(new MockMultipartFile("files", "scan" + i + ".pdf",
+                    MediaType.APPLICATION_PDF_VALUE, TestPdfs.withPages(40, 20_000)), idPrefix);
+        }
+        long start = System.nanoTime();
+        storageService.mergeFiles(idPrefix, linearize);
+        MergedPdfFile merged = storageService.getMergedPDF(idPrefix);
+        long serverMillis = (System.nanoTime() - start) / 1_000_000;
+        return new Result(merged.content().length, serverMillis, bytesBeforeFirstPage(merged.content()));
+    }
+
+    private static long bytesBeforeFirstPage(byte[] pdf) {
+        String head = new String(pdf, 0, Math.min(pdf.length, 1024), StandardCharsets.ISO_8859_1);
+        Matcher matcher = LINEARIZED_FIRST_PAGE_END.matcher(head);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : pdf.length;
+    }
+
+    private static final class Result {
+        final long size;
+        final long serverMillis;
+        final long bytesBeforeFirstPage;
+
+        Result(long size, long serverMillis, long bytesBeforeFirstPage) {
+            this.size = size;
+            this.serverMillis = serverMillis;
+            this.bytesBeforeFirstPage = bytesBeforeFirstPage;
+        }
+
+        long estimatedTimeToFirstPageMillis() {
+            return serverMillis + (long) (bytesBeforeFirstPage / BANDWIDTH_BYTES_PER_SECOND * 1000);
+        }
+    }
+}
@@ -5,8 +5,10 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.security.MessageDigest;
 import static org.junit.jupiter.api.Assertions.*;
 
 import org.springframework.http.MediaType;
@@ -203,6 +205,19 @@ class LocalStorageServiceTests {
         assertTrue(filesToMerge.isEmpty(), "Files to merge list should be empty as the path traversal attempt prevented storage.");
     }
 
+    @Test
+    void testStorePDF_AbsoluteNameIsRejected() {
+        Path outside = tempDir.resolveSibling(tempDir.getFileName() + "-outside.pdf");
+        byte[] content = "malicious content".getBytes();
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> storageService.storePDF(
+                new java.io.ByteArrayInputStream(content), content.length, outside.toString(), "testPrefix_absolute"));
+
+        assertEquals(HttpStatus.FORBIDDEN, exception.getStatus());
+        assertFalse(Files.exists(outside), "An absolute name must not be written outside the session directory.");
+        assertTrue(storageService.getFilesToMerge("testPrefix_absolute").isEmpty());
+    }
+
     @Test
     void testNumberOfFilesToMerge_NoFilesForPrefix() {
         String idPrefix = "prefixWithNoFiles";
@@ -294,6 +309,60 @@ class LocalStorageServiceTests {
                 "Exception status should be NOT_FOUND if no filename registered for prefix.");
     }
 
+    @Test
+    void testGetMergedPDF_MissingOutputReleasesLease() throws InterruptedException {
+        MergeAdmissionController admissionController = new MergeAdmissionController(1000, 1000, 1000, 0);
+        LocalStorageService service = new LocalStorageService(tempDir, admissionController);
+        String idPrefix = "prefixWithLostOutput";
+        service.setGeneratedFilenameForPrefix(idPrefix, "lost_merged.pdf");
+        service.parkLease(idPrefix, admissionController.acquire(admissionController.estimate(100)), System.currentTimeMillis());
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> service.getMergedPDF(idPrefix));
+
+        assertEquals(HttpStatus.FORBIDDEN, exception.getStatus());
+        assertEquals(0, admissionController.getMemoryInUse(), "The lease should be released even though nothing was served.");
+        assertEquals(0, admissionController.getDiskInUse());
+        assertNull(service.getGeneratedFilenameForPrefix(idPrefix));
+    }
+
+    @Test
+    void testExpireParkedLeases_DiscardsOutputsNeverFetched() throws IOException, InterruptedException {
+        MergeAdmissionController admissionController = new MergeAdmissionController(1000, 1000, 1000, 0, 60_000);
+        LocalStorageService service = new LocalStorageService(tempDir, admissionController);
+        String abandoned = "prefixNeverFetched";
+        String recent = "prefixJustMerged";
+        for (String idPrefix : List.of(abandoned, recent)) {
+            service.setGeneratedFilenameForPrefix(idPrefix, "out_merged.pdf");
+            Files.write(tempDir.resolve(idPrefix + "-out_merged.pdf"), "merged".getBytes());
+        }
+        service.parkLease(abandoned, admissionController.acquire(admissionController.estimate(100)), System.currentTimeMillis() - 120_000);
+        service.parkLease(recent, admissionController.acquire(admissionController.estimate(100)), System.currentTimeMillis());
+
+        service.expireParkedLeases();
+
+        assertFalse(Files.exists(tempDir.resolve(abandoned + "-out_merged.pdf")), "Outputs past their TTL should be deleted.");
+        assertNull(service.getGeneratedFilenameForPrefix(abandoned));
+        assertEquals(admissionController.estimate(100).getMemoryBytes(), admissionController.getMemoryInUse(),
+                "Only the lease of the recent merge should still be held.");
+        assertArrayEquals("merged".getBytes(), service.getMergedPDF(recent).content());
+        assertEquals(0, admissionController.getMemoryInUse());
+    }
+
+    @Test
+    void testOptimizeImages_WaitsForAdmission() throws IOException, InterruptedException {
+        MergeAdmissionController admissionController = new MergeAdmissionController(1000, 1000, 1000, 0);
+        LocalStorageService service = new LocalStorageService(tempDir, admissionController);
+        String idPrefix = "prefixOptimizedWhileBusy";
+        service.storePDF(new MockMultipartFile("file", "scan.pdf", MediaType.APPLICATION_PDF_VALUE, "%PDF-1.4 scan".getBytes()), idPrefix);
+
+        try (MergeAdmissionController.Lease busy = admissionController.acquire(admissionController.estimate(1000))) {
+            ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> service.optimizeImages(idPrefix));
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus(), "Ghostscript should not start without scratch disk.");
+        }
+        assertEquals(0, service.numberOfFilesToMerge(idPrefix), "The session should be discarded when it isn't admitted.");
+        assertEquals(0, admissionController.getDiskInUse());
+    }
+
     @Test
     void testMergeFiles_PerformsCleanup() throws IOException {
         String idPrefix = "prefixForMergeFilesCleanup";
@@ -310,27 +379,23 @@ class LocalStorageServiceTests {
         assertTrue(Files.exists(individualFilesDir.resolve("f1.pdf")), "Dummy file1 should exist before mergeFiles.");
         assertNotNull(storageService.getFilesToMerge(idPrefix), "allFiles map should have entry for individual files before mergeFiles.");
 
-        // 2. Call mergeFiles. It will generate a dynamic name and store it.
-        // It might throw ResponseStatusException if pdfunite fails or is missing.
-        String dynamicName = null;
+        // 2. Call mergeFiles. It will generate a dynamic name and store it once the output exists.
+        // It throws ResponseStatusException if pdfunite fails or is missing.
+        boolean merged;
         try {
             storageService.mergeFiles(idPrefix);
-            // Retrieve the dynamically generated name AFTER mergeFiles has run (and potentially created the file)
-            dynamicName = storageService.getGeneratedFilenameForPrefix(idPrefix);
-            assertNotNull(dynamicName, "Dynamically generated filename should not be null after successful mergeFiles call.");
+            merged = true;
         } catch (ResponseStatusException e) {
-            System.out.println("mergeFiles threw ResponseStatusException (expected if pdfunite is missing/fails): " + e.getMessage());
-            // Even if pdfunite fails, mergeFiles should have generated and stored the name.
-            dynamicName = storageService.getGeneratedFilenameForPrefix(idPrefix);
-            assertNotNull(dynamicName, "Dynamically generated filename should still be set even if pdfunite command fails.");
+            merged = false;
         }
+        String dynamicName = storageService.getGeneratedFilenameForPrefix(idPrefix);
+        Path mergedOutputFile = storageService.getRootLocation().resolve(idPrefix + "-f1_merged.pdf");
 
-        // 3. Create a dummy merged output file using the dynamic name (as if pdfunite created it)
-        // This ensures mergeFiles's finally block doesn't delete what getMergedPDF expects.
-        Path mergedOutputFile = storageService.getRootLocation().resolve(idPrefix + "-" + dynamicName);
-        Files.write(mergedOutputFile, "dummy output from pdfunite".getBytes());
-        assertTrue(Files.exists(mergedOutputFile), "Dummy merged output file (using dynamic name) should exist.");
-
+        // 3. A failed merge leaves neither an output nor its name behind
+        if (!merged) {
+            assertNull(dynamicName, "No filename should be recorded when pdfunite fails.");
+            assertFalse(Files.exists(mergedOutputFile), "A partial output should be deleted when pdfunite fails.");
+        }
 
         // 4. Assert cleanup of individual files and directory by mergeFiles's finally block
         assertFalse(Files.exists(individualFilesDir),
@@ -340,13 +405,138 @@ class LocalStorageServiceTests {
         assertNull(storageService.getFilesToMerge(idPrefix),
                 "Entry for individual files in allFiles map should be removed after mergeFiles.");
 
-        // 6. Assert that the main merged output file was NOT deleted by mergeFiles's cleanup
-        assertTrue(Files.exists(mergedOutputFile),
-                "The main merged output file (using dynamic name) should NOT be deleted by mergeFiles's cleanup.");
+        // 6. Assert that the main merged output file and its name were NOT removed by mergeFiles's cleanup
+        // (it's getMergedPDF's responsibility to clean them)
+        if (merged) {
+            assertEquals("f1_merged.pdf", dynamicName, "The output filename should be recorded after a successful merge.");
+            assertTrue(Files.exists(mergedOutputFile),
+                    "The main merged output file (using dynamic name) should NOT be deleted by mergeFiles's cleanup.");
+        }
+    }
+
+    @Test
+    void testMergeFiles_PreflightRejectsBrokenInputs() {
+        InputPreflight preflight = new InputPreflight(true, 2, 2);
+        LocalStorageService checkedService = new LocalStorageService(tempDir, new MergeAdmissionController(),
+                new InMemorySessionRegistry(), new RequestTimelines(), new ImageOptimizer(), preflight);
+        String idPrefix = "prefixForPreflight";
+        checkedService.storePDF(new MockMultipartFile("f", "good.pdf", MediaType.APPLICATION_PDF_VALUE,
+                TestPdfs.withPages(1, 100)), idPrefix);
+        checkedService.storePDF(new MockMultipartFile("f", "bad.pdf", MediaType.APPLICATION_PDF_VALUE,
+                "c1".getBytes()), idPrefix);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> checkedService.mergeFiles(idPrefix));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+        assertEquals("bad.pdf is not a PDF document", exception.getReason());
+        assertFalse(Files.exists(tempDir.resolve(idPrefix)), "Inputs of a rejected merge should be deleted.");
+        assertNull(checkedService.getFilesToMerge(idPrefix));
+        preflight.shutdown();
+    }
+
+    @Test
+    void testMergeFiles_QuoteInFilenameAndDiagnosticsCleanup() throws IOException {
+        String idPrefix = "prefixForQuotes";
+        // used to break the single-quoted shell command pdfunite was run with
+        MockMultipartFile file1 = new MockMultipartFile("f", "it's mine.pdf", MediaType.APPLICATION_PDF_VALUE, "c1".getBytes());
+        assertDoesNotThrow(() -> storageService.storePDF(file1, idPrefix));
+
+        try {
+            storageService.mergeFiles(idPrefix);
+        } catch (ResponseStatusException e) {
+            // pdfunite is missing or rejects the dummy input, only the cleanup is checked here
+        }
+
+        assertFalse(Files.exists(storageService.getRootLocation().resolve(idPrefix + ".stderr")),
+                "The diagnostics of the merge should not be left behind.");
+        assertFalse(Files.exists(storageService.getRootLocation().resolve(idPrefix)));
+    }
+
+    @Test
+    void testPdfuniteCommand_EachPathIsOneArgument() {
+        Path quoted = tempDir.resolve("prefix").resolve("it's \"mine\"; rm -rf ~.pdf");
+        Path spaced = tempDir.resolve("prefix").resolve("$(two words).pdf");
+        Path output = tempDir.resolve("prefix-it's_merged.pdf");
+
+        List<String> command = LocalStorageService.pdfuniteCommand(List.of(quoted, spaced), output);
+
+        assertEquals(List.of("/usr/bin/pdfunite", quoted.toString(), spaced.toString(), output.toString()), command,
+                "Paths should be passed as they are, one argument each, with no shell to interpret them.");
+    }
+
+    @Test
+    void testStoreKnownPDF_ReusesEarlierUpload() throws Exception {
+        ContentStore contentStore = new ContentStore(tempDir.resolve("content"), 60_000, 1_000_000);
+        contentStore.init();
+        LocalStorageService reusingService = new LocalStorageService(tempDir, new MergeAdmissionController(),
+                new InMemorySessionRegistry(), new RequestTimelines(), new ImageOptimizer(), new InputPreflight(), contentStore);
+        byte[] terms = "terms and conditions".getBytes();
+        String sha256 = String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(terms)));
+
+        reusingService.storePDF(new MockMultipartFile("f", "terms.pdf", MediaType.APPLICATION_PDF_VALUE, terms), "first");
+        reusingService.discardFiles("first");
+        assertTrue(reusingService.isKnownPDF(sha256), "Uploaded content should outlive its session.");
+
+        reusingService.storeKnownPDF(sha256, "second");
+        List<Path> files = reusingService.getFilesToMerge("second");
+        assertEquals(1, files.size());
+        assertEquals("terms.pdf", files.get(0).getFileName().toString(), "Reused content should keep its uploaded name.");
+        assertArrayEquals(terms, Files.readAllBytes(files.get(0)));
+
+        // neither a second reference nor an upload of the same name may replace the referenced input
+        reusingService.storeKnownPDF(sha256, "second");
+        reusingService.storePDF(new MockMultipartFile("f", "terms.pdf", MediaType.APPLICATION_PDF_VALUE, "new terms".getBytes()), "second");
+        files = reusingService.getFilesToMerge("second");
+        assertEquals(3, files.size());
+        assertEquals(3, new java.util.HashSet<>(files).size(), "Each input should have a file of its own.");
+        assertArrayEquals(terms, Files.readAllBytes(files.get(1)));
+        assertArrayEquals("new terms".getBytes(), Files.readAllBytes(files.get(2)));
+        assertEquals("terms_and_terms_and_1_others_merged.pdf", reusingService.getMergedFilename("second"));
+
+        ResponseStatusException unknown = assertThrows(ResponseStatusException.class,
+                () -> reusingService.storeKnownPDF(String.format("%064d", 0), "third"));
+        assertEquals(HttpStatus.NOT_FOUND, unknown.getStatus());
+        ResponseStatusException invalid = assertThrows(ResponseStatusException.class,
+                () -> reusingService.storeKnownPDF("../../etc/passwd", "third"));
+        assertEquals(HttpStatus.BAD_REQUEST, invalid.getStatus());
+    }
+
+    @Test
+    void testStorePDF_ReplacingAnUploadLeavesStoredContentAlone() throws Exception {
+        ContentStore contentStore = new ContentStore(tempDir.resolve("content"), 60_000, 1_000_000);
+        contentStore.init();
+        LocalStorageService reusingService = new LocalStorageService(tempDir, new MergeAdmissionController(),
+                new InMemorySessionRegistry(), new RequestTimelines(), new ImageOptimizer(), new InputPreflight(), contentStore);
+        byte[] terms = "%PDF-1.4 OLD".getBytes();
+        String sha256 = String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(terms)));
+
+        reusingService.storePDF(new MockMultipartFile("f", "terms.pdf", MediaType.APPLICATION_PDF_VALUE, terms), "a");
+        reusingService.storePDF(new MockMultipartFile("f", "terms.pdf", MediaType.APPLICATION_PDF_VALUE,
+                "%PDF-1.4 NEW".getBytes()), "a");
+
+        Path linked = tempDir.resolve("linked.pdf");
+        contentStore.linkTo(sha256, linked);
+        assertArrayEquals(terms, Files.readAllBytes(linked), "Stored content must still match its digest.");
+        try (java.util.stream.Stream<Path> left = Files.list(tempDir.resolve("a"))) {
+            assertEquals(1, left.count(), "No partial upload should be left in the session directory.");
+        }
+    }
+
+    @Test
+    void testStreamMergedPDF_FailureIsReportedAndCleansUp() {
+        String idPrefix = "prefixForStreamFailure";
+        MockMultipartFile file1 = new MockMultipartFile("f", "f1.pdf", MediaType.APPLICATION_PDF_VALUE, "c1".getBytes());
+        assertDoesNotThrow(() -> storageService.storePDF(file1, idPrefix));
+        assertEquals("f1_merged.pdf", storageService.getMergedFilename(idPrefix));
+
+        // "c1" isn't a PDF (and pdfunite may not even be installed): the merge fails after the response has started
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        assertThrows(IOException.class, () -> storageService.streamMergedPDF(idPrefix, out));
 
-        // 7. Assert that the entry in generatedFilenamesByPrefix map IS STILL PRESENT after mergeFiles
-        // (it's getMergedPDF's responsibility to clean that specific entry)
-        assertEquals(dynamicName, storageService.getGeneratedFilenameForPrefix(idPrefix),
-                "Entry in generatedFilenamesByPrefix should persist after mergeFiles completes.");
+        assertFalse(Files.exists(storageService.getRootLocation().resolve(idPrefix)),
+                "Inputs should be deleted after a streamed merge, even a failed one.");
+        assertFalse(Files.exists(storageService.getRootLocation().resolve(idPrefix + "-f1_merged.pdf")),
+                "The streamed output file should not be left behind.");
+        assertNull(storageService.getFilesToMerge(idPrefix));
     }
 }
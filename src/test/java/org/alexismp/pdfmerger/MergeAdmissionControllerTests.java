@@ -0,0 +1,115 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MergeAdmissionControllerTests {
+
+    @Test
+    void testEstimate_SmallMergeStaysOnHeap() {
+        MergeAdmissionController controller = new MergeAdmissionController(1000, 1000, 100, 0);
+
+        MergeAdmissionController.Weight weight = controller.estimate(10);
+
+        assertFalse(weight.isSpill(), "Merges below the spill threshold should be read back onto the heap.");
+        assertEquals(20, weight.getMemoryBytes(), "pdfunite working set plus heap readback should both be counted.");
+        assertEquals(20, weight.getDiskBytes(), "Scratch disk should hold the inputs and the output.");
+    }
+
+    @Test
+    void testEstimate_LinearizingCountsTheIntermediateOutput() {
+        MergeAdmissionController controller = new MergeAdmissionController(1000, 1000, 100, 0);
+
+        MergeAdmissionController.Weight weight = controller.estimate(10, true);
+
+        assertEquals(20, weight.getMemoryBytes(), "pdfunite and qpdf run one after the other.");
+        assertEquals(30, weight.getDiskBytes(), "Scratch disk should hold the inputs, the unlinearized output and the output.");
+    }
+
+    @Test
+    void testEstimateOptimization_CountsTheOptimizedCopies() {
+        MergeAdmissionController controller = new MergeAdmissionController(1000, 1000, 100, 0);
+
+        MergeAdmissionController.Weight weight = controller.estimateOptimization(10);
+
+        assertEquals(0, weight.getMemoryBytes());
+        assertEquals(10, weight.getDiskBytes(), "Optimized copies are never larger than the inputs they replace.");
+    }
+
+    @Test
+    void testEstimate_LargeMergeSpillsAndIsCappedAtBudget() {
+        MergeAdmissionController controller = new MergeAdmissionController(300, 500, 100, 0);
+
+        MergeAdmissionController.Weight weight = controller.estimate(400);
+
+        assertTrue(weight.isSpill(), "Merges at or above the spill threshold should be served from the scratch file.");
+        assertEquals(300, weight.getMemoryBytes(), "Memory weight should be capped at the memory budget.");
+        assertEquals(500, weight.getDiskBytes(), "Disk weight should be capped at the disk budget.");
+    }
+
+    @Test
+    void testAcquire_TimesOutWhenBudgetIsExhausted() throws InterruptedException {
+        MergeAdmissionController controller = new MergeAdmissionController(100, 1000, 1000, 50);
+
+        MergeAdmissionController.Lease first = controller.acquire(controller.estimate(40)); // 80 bytes of memory
+        assertNotNull(first);
+        assertNull(controller.acquire(controller.estimate(20)), "A second merge should not fit in the remaining 20 bytes.");
+
+        first.close();
+        first.close(); // releasing twice must not give back the weight twice
+        assertEquals(0, controller.getMemoryInUse());
+        assertEquals(0, controller.getDiskInUse());
+    }
+
+    @Test
+    void testLease_HeldUntilSpilledOutputIsServed(@TempDir Path tempDir) throws Exception {
+        MergeAdmissionController controller = new MergeAdmissionController(1000, 1000, 10, 0);
+        MergeAdmissionController.Lease lease = controller.acquire(controller.estimate(100));
+        Path spillFile = Files.write(tempDir.resolve("merged.pdf"), new byte[100]);
+        MergedPdfFile merged = new MergedPdfFile(null, "merged.pdf", spillFile, lease);
+
+        BufferPool pool = new BufferPool();
+        try (InputStream in = merged.openSpillFile(pool)) {
+            assertEquals(100, in.readAllBytes().length);
+            assertEquals(200, controller.getDiskInUse(), "The output is still on scratch disk while it is being served.");
+        }
+        assertEquals(0, controller.getDiskInUse(), "Serving the output should give its weight back.");
+        assertEquals(0, pool.getStats().getOutstanding(), "The read buffer should go back to the pool.");
+        assertFalse(Files.exists(spillFile), "The scratch file should be deleted once served.");
+    }
+
+    @Test
+    void testAcquire_WaitsForRelease() throws Exception {
+        MergeAdmissionController controller = new MergeAdmissionController(100, 1000, 1000, TimeUnit.SECONDS.toMillis(10));
+        MergeAdmissionController.Lease first = controller.acquire(controller.estimate(50));
+
+        CountDownLatch admitted = new CountDownLatch(1);
+        AtomicReference<MergeAdmissionController.Lease> second = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                second.set(controller.acquire(controller.estimate(50)));
+                admitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+
+        assertFalse(admitted.await(100, TimeUnit.MILLISECONDS), "Second merge should wait while the budget is used.");
+        first.close();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS), "Second merge should be admitted once the first is released.");
+        assertNotNull(second.get());
+        assertEquals(100, controller.getMemoryInUse());
+        second.get().close();
+        waiter.join();
+    }
+}
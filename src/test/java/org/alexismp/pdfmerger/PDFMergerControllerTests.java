@@ -1,6 +1,5 @@
 package org.alexismp.pdfmerger;
 
-import org.alexismp.pdfmerger.storage.StorageService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -9,6 +8,8 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockMultipartFile;
 // Added for MergedPdfFile and HttpHeaders
 import org.alexismp.pdfmerger.MergedPdfFile;
@@ -16,6 +17,8 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException; // Added import
 
+import static org.hamcrest.Matchers.matchesPattern;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -44,7 +47,7 @@ public class PDFMergerControllerTests {
         verify(storageService, times(1)).numberOfFilesToMerge(anyString());
         // Verify other storageService methods were not called
         verify(storageService, never()).storePDF(any(), anyString());
-        verify(storageService, never()).mergeFiles(anyString());
+        verify(storageService, never()).mergeFiles(anyString(), anyBoolean());
         verify(storageService, never()).getMergedPDF(anyString());
     }
     // Test methods will be added here in future steps
@@ -64,7 +67,7 @@ public class PDFMergerControllerTests {
         // storePDF is void, so doNothing is appropriate if we just want to ensure it's called
         doNothing().when(storageService).storePDF(any(MultipartFile.class), anyString());
         when(storageService.numberOfFilesToMerge(anyString())).thenReturn(1);
-        doNothing().when(storageService).mergeFiles(anyString());
+        doNothing().when(storageService).mergeFiles(anyString(), anyBoolean());
 
         // Mock getMergedPDF to return MergedPdfFile object
         String expectedFilename = "file1_merged.pdf"; // Based on dynamic generation logic for "file1.pdf"
@@ -73,14 +76,16 @@ public class PDFMergerControllerTests {
 
         mvc.perform(multipart("/pdfmerger").file(file))
                 .andExpect(status().isOk())
-                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename="" + expectedFilename + """))
-                .andExpect(content().bytes(mergedPdfContent));
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + expectedFilename + "\""))
+                .andExpect(content().bytes(mergedPdfContent))
+                // Phases recorded by the (mocked) storage service are absent, upload, queue and total come from the controller
+                .andExpect(header().string(PDFMergerController.SERVER_TIMING, matchesPattern("upload;dur=[0-9.]+, queue;dur=[0-9.]+, total;dur=[0-9.]+")));
 
         // Verify interactions with storageService
         // The controller generates a UUID prefix, so we use anyString() for that argument.
         verify(storageService, times(1)).storePDF(eq(file), anyString());
         verify(storageService, times(1)).numberOfFilesToMerge(anyString());
-        verify(storageService, times(1)).mergeFiles(anyString());
+        verify(storageService, times(1)).mergeFiles(anyString(), eq(false));
         verify(storageService, times(1)).getMergedPDF(anyString());
     }
 
@@ -104,7 +109,7 @@ public class PDFMergerControllerTests {
         // Mocking StorageService behavior
         doNothing().when(storageService).storePDF(any(MultipartFile.class), anyString());
         when(storageService.numberOfFilesToMerge(anyString())).thenReturn(2); // For two files
-        doNothing().when(storageService).mergeFiles(anyString());
+        doNothing().when(storageService).mergeFiles(anyString(), anyBoolean());
 
         // Mock getMergedPDF to return MergedPdfFile object
         // Filenames are "file1.pdf" and "file2.pdf"
@@ -114,7 +119,7 @@ public class PDFMergerControllerTests {
 
         mvc.perform(multipart("/pdfmerger").file(file1).file(file2))
                 .andExpect(status().isOk())
-                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename="" + expectedFilename + """))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + expectedFilename + "\""))
                 .andExpect(content().bytes(mergedPdfContent));
 
         // Verify interactions with storageService
@@ -123,10 +128,216 @@ public class PDFMergerControllerTests {
         verify(storageService, times(1)).storePDF(eq(file1), anyString());
         verify(storageService, times(1)).storePDF(eq(file2), anyString());
         verify(storageService, times(1)).numberOfFilesToMerge(anyString()); // Called once after all files are stored
-        verify(storageService, times(1)).mergeFiles(anyString());
+        verify(storageService, times(1)).mergeFiles(anyString(), eq(false));
         verify(storageService, times(1)).getMergedPDF(anyString());
     }
 
+    @Test
+    public void testHandleFileUpload_Linearized() throws Exception {
+        MockMultipartFile file = new MockMultipartFile(
+                "files",
+                "file1.pdf",
+                MediaType.APPLICATION_PDF_VALUE,
+                "pdf_content_for_file1".getBytes()
+        );
+
+        byte[] mergedPdfContent = "linearized_pdf_content".getBytes();
+
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(1);
+        when(storageService.getMergedPDF(anyString())).thenReturn(new MergedPdfFile(mergedPdfContent, "file1_merged.pdf"));
+
+        mvc.perform(multipart("/pdfmerger").file(file).param("linearize", "true"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(mergedPdfContent));
+
+        // The option should be passed through to the storage service
+        verify(storageService, times(1)).mergeFiles(anyString(), eq(true));
+        verify(storageService, never()).mergeFiles(anyString(), eq(false));
+    }
+
+    @Test
+    public void testHandleFileUpload_Optimized() throws Exception {
+        MockMultipartFile file = new MockMultipartFile(
+                "files",
+                "scan.pdf",
+                MediaType.APPLICATION_PDF_VALUE,
+                "pdf_content_for_scan".getBytes()
+        );
+
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(1);
+        when(storageService.optimizeImages(anyString())).thenReturn(new ImageOptimizer.Report(1000, 250, 1));
+        when(storageService.getMergedPDF(anyString())).thenReturn(new MergedPdfFile("optimized".getBytes(), "scan_merged.pdf"));
+
+        mvc.perform(multipart("/pdfmerger").file(file).param("optimize", "true"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(PDFMergerController.IMAGE_SAVINGS, "before=1000; after=250; saved=75.0%; inputs=1"));
+
+        // Images are recompressed before the files are merged
+        verify(storageService, times(1)).optimizeImages(anyString());
+        verify(storageService, times(1)).mergeFiles(anyString(), eq(false));
+    }
+
+    @Test
+    public void testHandleFileUpload_Streamed() throws Exception {
+        MockMultipartFile file = new MockMultipartFile(
+                "files",
+                "file1.pdf",
+                MediaType.APPLICATION_PDF_VALUE,
+                "pdf_content_for_file1".getBytes()
+        );
+
+        byte[] mergedPdfContent = "streamed_pdf_content".getBytes();
+
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(1);
+        when(storageService.getMergedFilename(anyString())).thenReturn("file1_merged.pdf");
+        doAnswer(invocation -> {
+            ((java.io.OutputStream) invocation.getArgument(1)).write(mergedPdfContent);
+            return null;
+        }).when(storageService).streamMergedPDF(anyString(), any());
+
+        // The merge runs once the handler has returned, while the response is being written
+        MvcResult result = mvc.perform(multipart("/pdfmerger").file(file).param("stream", "true"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"file1_merged.pdf\""))
+                .andExpect(content().bytes(mergedPdfContent));
+
+        verify(storageService, times(1)).streamMergedPDF(anyString(), any());
+        verify(storageService, never()).mergeFiles(anyString(), anyBoolean());
+        verify(storageService, never()).getMergedPDF(anyString());
+    }
+
+    @Test
+    public void testHandleFileUpload_StreamedAndLinearizedIsRejected() throws Exception {
+        MockMultipartFile file = new MockMultipartFile(
+                "files",
+                "file1.pdf",
+                MediaType.APPLICATION_PDF_VALUE,
+                "pdf_content_for_file1".getBytes()
+        );
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(1);
+
+        mvc.perform(multipart("/pdfmerger").file(file).param("stream", "true").param("linearize", "true"))
+                .andExpect(status().isBadRequest());
+
+        verify(storageService, never()).storePDF(any(MultipartFile.class), anyString());
+        verify(storageService, never()).streamMergedPDF(anyString(), any());
+    }
+
+    @Test
+    public void testHandleFileUpload_ReferencedInput() throws Exception {
+        String sha256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        MockMultipartFile reference = new MockMultipartFile("files", "sha256:" + sha256, MediaType.APPLICATION_PDF_VALUE, new byte[0]);
+        MockMultipartFile file = new MockMultipartFile("files", "letter.pdf", MediaType.APPLICATION_PDF_VALUE, "letter".getBytes());
+
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(2);
+        when(storageService.getMergedPDF(anyString())).thenReturn(new MergedPdfFile("merged".getBytes(), "cover_and_letter_merged.pdf"));
+
+        mvc.perform(multipart("/pdfmerger").file(reference).file(file))
+                .andExpect(status().isOk());
+
+        // The referenced input is taken from the content store instead of being stored as an upload
+        verify(storageService, times(1)).storeKnownPDF(eq(sha256), anyString());
+        verify(storageService, times(1)).storePDF(eq(file), anyString());
+        verify(storageService, never()).storePDF(eq(reference), anyString());
+    }
+
+    @Test
+    public void testHandleFileUpload_UnknownReferenceDiscardsStoredFiles() throws Exception {
+        String sha256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        MockMultipartFile file = new MockMultipartFile("files", "letter.pdf", MediaType.APPLICATION_PDF_VALUE, "letter".getBytes());
+        MockMultipartFile reference = new MockMultipartFile("files", "sha256:" + sha256, MediaType.APPLICATION_PDF_VALUE, new byte[0]);
+        doThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown input"))
+                .when(storageService).storeKnownPDF(eq(sha256), anyString());
+
+        mvc.perform(multipart("/pdfmerger").file(file).file(reference))
+                .andExpect(status().isNotFound());
+
+        verify(storageService, times(1)).discardFiles(anyString());
+        verify(storageService, never()).mergeFiles(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testHandleRawUpload() throws Exception {
+        java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+        FramedInputs.writeHeader(body, "cover.pdf", 5);
+        body.write("cover".getBytes());
+        FramedInputs.writeHeader(body, "letter.pdf", 6);
+        body.write("letter".getBytes());
+        byte[] mergedPdfContent = "raw_merged_content".getBytes();
+
+        java.util.List<String> stored = new java.util.ArrayList<>();
+        doAnswer(invocation -> {
+            byte[] content = org.springframework.util.StreamUtils.copyToByteArray(invocation.getArgument(0));
+            stored.add(invocation.getArgument(2) + "=" + new String(content));
+            return null;
+        }).when(storageService).storePDF(any(java.io.InputStream.class), anyLong(), anyString(), anyString());
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(2);
+        when(storageService.getMergedFilename(anyString())).thenReturn("cover_and_letter_merged.pdf");
+        doAnswer(invocation -> {
+            ((java.io.OutputStream) invocation.getArgument(1)).write(mergedPdfContent);
+            return null;
+        }).when(storageService).streamMergedPDF(anyString(), any());
+
+        MvcResult result = mvc.perform(post("/pdfmerger/raw").contentType(FramedInputs.CONTENT_TYPE).content(body.toByteArray()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_PDF))
+                .andExpect(content().bytes(mergedPdfContent));
+
+        // Documents are handed to the storage service in order, each one ending where the next frame starts
+        assertEquals(java.util.Arrays.asList("cover.pdf=cover", "letter.pdf=letter"), stored);
+    }
+
+    @Test
+    public void testHandleRawUpload_TruncatedBodyIsRejected() throws Exception {
+        java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+        FramedInputs.writeHeader(body, "cover.pdf", 5);
+        body.write("cover".getBytes());
+        body.write(new byte[] {0, 9, 'l'}); // the next frame header is cut short
+
+        mvc.perform(post("/pdfmerger/raw").contentType(FramedInputs.CONTENT_TYPE).content(body.toByteArray()))
+                .andExpect(status().isBadRequest());
+
+        verify(storageService, times(1)).discardFiles(anyString());
+        verify(storageService, never()).streamMergedPDF(anyString(), any());
+    }
+
+    @Test
+    public void testKnownInput() throws Exception {
+        when(storageService.isKnownPDF("known")).thenReturn(true);
+
+        mvc.perform(head("/pdfmerger/inputs/known")).andExpect(status().isOk());
+        mvc.perform(head("/pdfmerger/inputs/unknown")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testSchedulerStats() throws Exception {
+        mvc.perform(get("/pdfmerger/scheduler"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void testClientKey_IsHashed() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+        String address = PDFMergerController.clientKey(request);
+        assertTrue(address.startsWith("addr-"));
+        assertFalse(address.contains("10.0.0.1"), "Client addresses should not show up in the scheduler statistics.");
+        request.setRemoteAddr("10.0.0.2");
+        assertNotEquals(address, PDFMergerController.clientKey(request), "Clients should still be told apart.");
+
+        request.addHeader(PDFMergerController.API_KEY, "secret");
+        String key = PDFMergerController.clientKey(request);
+        assertTrue(key.startsWith("key-"));
+        assertFalse(key.contains("secret"), "API keys should not show up in the scheduler statistics.");
+    }
+
     @Test
     public void testHandleFileUpload_NonPdfFile() throws Exception {
         MockMultipartFile file = new MockMultipartFile(
@@ -147,7 +358,7 @@ public class PDFMergerControllerTests {
         // Verify interactions with storageService
         verify(storageService, times(1)).storePDF(eq(file), anyString());
         verify(storageService, never()).numberOfFilesToMerge(anyString());
-        verify(storageService, never()).mergeFiles(anyString());
+        verify(storageService, never()).mergeFiles(anyString(), anyBoolean());
         verify(storageService, never()).getMergedPDF(anyString());
     }
 
@@ -171,7 +382,7 @@ public class PDFMergerControllerTests {
         // Verify interactions with storageService
         verify(storageService, never()).storePDF(any(MultipartFile.class), anyString());
         verify(storageService, times(1)).numberOfFilesToMerge(anyString());
-        verify(storageService, never()).mergeFiles(anyString());
+        verify(storageService, never()).mergeFiles(anyString(), anyBoolean());
         verify(storageService, never()).getMergedPDF(anyString());
     }
 
@@ -195,7 +406,7 @@ public class PDFMergerControllerTests {
         // Verify interactions with storageService
         verify(storageService, times(1)).storePDF(eq(emptyFile), anyString());
         verify(storageService, never()).numberOfFilesToMerge(anyString());
-        verify(storageService, never()).mergeFiles(anyString());
+        verify(storageService, never()).mergeFiles(anyString(), anyBoolean());
         verify(storageService, never()).getMergedPDF(anyString());
     }
 }
@@ -0,0 +1,102 @@
+package org.alexismp.pdfmerger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * A small client for the headless endpoint, used by the tests and as an example for JVM applications
+ * that merge documents without going through the form. It only depends on the JDK (and FramedInputs
+ * for the request format), e.g.
+ *
+ * <pre>
+ * PdfMergerClient client = new PdfMergerClient(URI.create("https://pdfmerger.example.com"), apiKey);
+ * client.merge(Arrays.asList(coverSheet, letter), mergedFile);
+ * </pre>
+ */
+public class PdfMergerClient {
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final URL endpoint;
+    private final String apiKey; // optional, see FairMergeScheduler
+
+    public PdfMergerClient(URI baseUri) throws IOException {
+        this(baseUri, null);
+    }
+
+    public PdfMergerClient(URI baseUri, String apiKey) throws IOException {
+        this.endpoint = baseUri.resolve("/pdfmerger/raw").toURL();
+        this.apiKey = apiKey;
+    }
+
+    // Merges the files in the given order into target
+    public void merge(List<Path> files, Path target) throws IOException {
+        try (InputStream merged = merge(files)) {
+            Files.copy(merged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Merges the files in the given order and returns the merged document as it is being produced.
+     * The caller has to close the stream. The server streams its response, so a merge failing
+     * half-way shows up as an IOException while reading it.
+     */
+    public InputStream merge(List<Path> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+        long length = 0;
+        for (Path file : files) {
+            length += Short.BYTES + file.getFileName().toString().getBytes(StandardCharsets.UTF_8).length + Long.BYTES
+                    + Files.size(file);
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length); // documents are sent from disk without being buffered
+        connection.setRequestProperty("Content-Type", FramedInputs.CONTENT_TYPE);
+        connection.setRequestProperty("Accept", "application/pdf");
+        if (apiKey != null) {
+            connection.setRequestProperty(PDFMergerController.API_KEY, apiKey);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            for (Path file : files) {
+                FramedInputs.writeHeader(out, file.getFileName().toString(), Files.size(file));
+                Files.copy(file, out);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            String error = readError(connection);
+            connection.disconnect();
+            throw new IOException("Merge failed with HTTP status " + status + (error.isEmpty() ? "" : ": " + error));
+        }
+        return connection.getInputStream();
+    }
+
+    private static String readError(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        try (InputStream in = connection.getErrorStream()) {
+            if (in == null) {
+                return "";
+            }
+            byte[] buffer = new byte[MAX_ERROR_LENGTH];
+            int read;
+            while (error.size() < MAX_ERROR_LENGTH && (read = in.read(buffer, 0, MAX_ERROR_LENGTH - error.size())) > 0) {
+                error.write(buffer, 0, read);
+            }
+        }
+        return new String(error.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,40 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestTimelineTests {
+
+    @Test
+    void testPhasesAreAccumulatedInFirstSeenOrder() {
+        RequestTimeline timeline = new RequestTimeline("prefix", System.nanoTime());
+        timeline.record("store", TimeUnit.MILLISECONDS.toNanos(2));
+        timeline.record("pdfunite", TimeUnit.MILLISECONDS.toNanos(30));
+        timeline.record("store", TimeUnit.MILLISECONDS.toNanos(3)); // a second uploaded file
+
+        String serverTiming = timeline.toServerTiming();
+        assertTrue(serverTiming.startsWith("store;dur=5.0, pdfunite;dur=30.0, total;dur="),
+                "Unexpected Server-Timing value: " + serverTiming);
+
+        String logLine = timeline.toLogLine();
+        assertTrue(logLine.startsWith("{\"event\":\"merge-timeline\",\"id\":\"prefix\",\"phasesMs\":{\"store\":5.0,\"pdfunite\":30.0},\"totalMs\":"),
+                "Unexpected log line: " + logLine);
+    }
+
+    @Test
+    void testRecordingWithoutTimelineIsIgnored() {
+        RequestTimelines timelines = new RequestTimelines();
+        assertDoesNotThrow(() -> timelines.record("unknown", "store", System.nanoTime()));
+        assertNull(timelines.finish("unknown"));
+
+        timelines.start("known", System.nanoTime());
+        timelines.record("known", "store", System.nanoTime());
+        RequestTimeline finished = timelines.finish("known");
+        assertNotNull(finished);
+        assertTrue(finished.getNanosByPhase().containsKey("store"));
+        assertNull(timelines.finish("known"), "A finished timeline should no longer be tracked.");
+    }
+}
@@ -0,0 +1,254 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers storePDF and mergeFiles from many threads and checks that no input is lost, duplicated
+ * or added to another session. The benchmark logs how appends to a single hot session scale with threads.
+ */
+class SessionRegistryStressTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionRegistryStressTests.class);
+
+    private static final int THREADS = 16;
+
+    private LocalStorageService storageService;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        storageService = new LocalStorageService(tempDir);
+        storageService.init();
+    }
+
+    @Test
+    void testStorePDF_ConcurrentUploadsToOneSessionAreAllKept() throws Exception {
+        int uploadsPerThread = 25;
+
+        runConcurrently(THREADS, thread -> {
+            for (int i = 0; i < uploadsPerThread; i++) {
+                store("shared", "t" + thread + "-" + i + ".pdf");
+            }
+        });
+
+        List<Path> files = storageService.getFilesToMerge("shared");
+        assertEquals(THREADS * uploadsPerThread, files.size(), "Every upload should have been added.");
+        assertEquals(files.size(), new HashSet<>(files).size(), "No upload should have been added twice.");
+
+        // uploads from one thread complete in order, so they must be listed in that order
+        Map<String, Integer> lastIndexByThread = new HashMap<>();
+        long totalBytes = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String[] parts = name.substring(1, name.length() - ".pdf".length()).split("-");
+            int index = Integer.parseInt(parts[1]);
+            Integer previous = lastIndexByThread.put(parts[0], index);
+            assertEquals(previous == null ? 0 : previous + 1, index, "Uploads of thread " + parts[0] + " are out of order.");
+            assertArrayEquals(contentOf(name), Files.readAllBytes(file), "Content of " + name + " was mixed up.");
+            totalBytes += Files.size(file);
+        }
+        assertEquals(totalBytes, storageService.totalBytesToMerge("shared"));
+    }
+
+    @Test
+    void testStorePDF_InterleavedSessionsDoNotMix() throws Exception {
+        int sessions = 32;
+        int uploadsPerThread = 40;
+
+        // every thread spreads its uploads over all the sessions
+        runConcurrently(THREADS, thread -> {
+            for (int i = 0; i < uploadsPerThread; i++) {
+                int session = (thread + i) % sessions;
+                store("session" + session, "s" + session + "-t" + thread + "-" + i + ".pdf");
+            }
+        });
+
+        int total = 0;
+        for (int session = 0; session < sessions; session++) {
+            List<Path> files = storageService.getFilesToMerge("session" + session);
+            for (Path file : files) {
+                assertTrue(file.getFileName().toString().startsWith("s" + session + "-"),
+                        file + " ended up in session" + session);
+                assertEquals(tempDir.resolve("session" + session), file.getParent());
+            }
+            total += files.size();
+        }
+        assertEquals(THREADS * uploadsPerThread, total, "Every upload should be in exactly one session.");
+    }
+
+    @Test
+    void testMergeFiles_ConcurrentWithUploadsToOtherSessions() throws Exception {
+        boolean pdfunite = Files.isExecutable(Paths.get("/usr/bin/pdfunite"));
+        int rounds = 5;
+        int filesPerMerge = 4;
+
+        runConcurrently(THREADS, thread -> {
+            for (int round = 0; round < rounds; round++) {
+                String prefix = "merge-t" + thread + "-r" + round;
+                List<String> names = new ArrayList<>();
+                for (int i = 0; i < filesPerMerge; i++) {
+                    String name = prefix + "-" + i + ".pdf";
+                    names.add(name);
+                    storageService.storePDF(new MockMultipartFile("files", name, MediaType.APPLICATION_PDF_VALUE,
+                            TestPdfs.withPages(1, 100)), prefix);
+                }
+                // other threads are merging and cleaning up their sessions meanwhile
+                List<String> stored = new ArrayList<>();
+                storageService.getFilesToMerge(prefix).forEach(file -> stored.add(file.getFileName().toString()));
+                assertEquals(names, stored, "Session " + prefix + " should hold exactly its uploads, in order.");
+
+                if (pdfunite) {
+                    storageService.mergeFiles(prefix);
+                    MergedPdfFile merged = storageService.getMergedPDF(prefix);
+                    assertEquals(prefix + "-0_and_" + prefix + "-1_and_2_others_merged.pdf", merged.filename());
+                } else {
+                    // the merge fails, its cleanup must only touch this session
+                    ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                            () -> storageService.mergeFiles(prefix));
+                    assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, e.getStatus());
+                }
+                assertNull(storageService.getFilesToMerge(prefix), "Session " + prefix + " should be gone after its merge.");
+                assertFalse(Files.exists(tempDir.resolve(prefix)), "Inputs of " + prefix + " should have been deleted.");
+            }
+        });
+    }
+
+    @Test
+    @Tag("benchmark")
+    void benchmarkAppendsToOneSession() throws Exception {
+        int appends = 200_000;
+        for (int threads : new int[] {1, 4, THREADS}) {
+            double registry = appendsPerMillisecond(threads, appends, new InMemorySessionRegistry());
+            double locked = appendsPerMillisecond(threads, appends, new LockedRegistry());
+            logger.info("{} threads: {} appends/ms lock-free, {} appends/ms with a synchronized list",
+                    threads, Math.round(registry), Math.round(locked));
+        }
+    }
+
+    private double appendsPerMillisecond(int threads, int appends, SessionRegistry registry) throws Exception {
+        registry.createSession("hot");
+        Path file = tempDir.resolve("hot.pdf");
+        int perThread = appends / threads;
+        long start = System.nanoTime();
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < perThread; i++) {
+                registry.addFile("hot", file, 1);
+            }
+        });
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        assertEquals(perThread * threads, registry.getFiles("hot").size());
+        assertEquals(perThread * threads, registry.getTotalBytes("hot"));
+        return perThread * threads / millis;
+    }
+
+    private void store(String prefix, String name) {
+        storageService.storePDF(new MockMultipartFile("files", name, MediaType.APPLICATION_PDF_VALUE, contentOf(name)), prefix);
+    }
+
+    private static byte[] contentOf(String name) {
+        return ("%PDF-1.4 " + name).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Starts all threads at once and rethrows the first failure
+    private static void runConcurrently(int threads, ThreadBody body) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    body.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ThreadBody {
+        void run(int thread) throws Exception;
+    }
+
+    // The previous layout: one synchronized list per session and a separate byte counter map
+    private static final class LockedRegistry implements SessionRegistry {
+        private final Map<String, List<Path>> allFiles = new java.util.concurrent.ConcurrentHashMap<>();
+        private final Map<String, Long> inputBytesByPrefix = new java.util.concurrent.ConcurrentHashMap<>();
+
+        @Override
+        public boolean createSession(String idPrefix) {
+            return allFiles.putIfAbsent(idPrefix, Collections.synchronizedList(new ArrayList<>())) == null;
+        }
+
+        @Override
+        public void addFile(String idPrefix, Path file, long size) {
+            allFiles.get(idPrefix).add(file);
+            inputBytesByPrefix.merge(idPrefix, size, Long::sum);
+        }
+
+        @Override
+        public List<Path> getFiles(String idPrefix) {
+            return allFiles.get(idPrefix);
+        }
+
+        @Override
+        public long getTotalBytes(String idPrefix) {
+            return inputBytesByPrefix.getOrDefault(idPrefix, 0L);
+        }
+
+        @Override
+        public void removeSession(String idPrefix) {
+            allFiles.remove(idPrefix);
+            inputBytesByPrefix.remove(idPrefix);
+        }
+
+        @Override
+        public void setOutputFilename(String idPrefix, String filename) {
+        }
+
+        @Override
+        public String getOutputFilename(String idPrefix) {
+            return null;
+        }
+
+        @Override
+        public void removeOutputFilename(String idPrefix) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Two registries over the same directory stand in for two instances sharing a mount
+class SharedFileSystemSessionRegistryTests {
+
+    @TempDir
+    Path tempDir;
+
+    private SharedFileSystemSessionRegistry instanceA;
+    private SharedFileSystemSessionRegistry instanceB;
+
+    @BeforeEach
+    void setUp() {
+        instanceA = new SharedFileSystemSessionRegistry(tempDir.resolve("sessions"));
+        instanceB = new SharedFileSystemSessionRegistry(tempDir.resolve("sessions"));
+    }
+
+    @Test
+    void testSessionIsVisibleFromOtherInstance() {
+        assertTrue(instanceA.createSession("prefix"), "First creation should report a new session.");
+        assertFalse(instanceB.createSession("prefix"), "The other instance should see the existing session.");
+
+        instanceA.addFile("prefix", tempDir.resolve("a.pdf"), 10);
+        instanceB.addFile("prefix", tempDir.resolve("b.pdf"), 5);
+
+        assertEquals(List.of(tempDir.resolve("a.pdf").toAbsolutePath(), tempDir.resolve("b.pdf").toAbsolutePath()),
+                instanceA.getFiles("prefix"), "Inputs should be listed in upload order whichever instance stored them.");
+        assertEquals(15, instanceB.getTotalBytes("prefix"));
+
+        instanceB.removeSession("prefix");
+        assertNull(instanceA.getFiles("prefix"));
+        assertEquals(0, instanceA.getTotalBytes("prefix"));
+    }
+
+    @Test
+    void testOutputFilenameIsVisibleFromOtherInstance() {
+        instanceA.setOutputFilename("prefix", "a_merged.pdf");
+
+        assertEquals("a_merged.pdf", instanceB.getOutputFilename("prefix"),
+                "The output name should be available to the instance serving the merged file.");
+        instanceB.removeOutputFilename("prefix");
+        assertNull(instanceA.getOutputFilename("prefix"));
+    }
+
+    @Test
+    void testRemoveSessionForgetsOutputFilename() {
+        instanceA.createSession("prefix");
+        instanceA.setOutputFilename("prefix", "a_merged.pdf");
+        instanceB.removeSession("prefix");
+
+        assertNull(instanceA.getOutputFilename("prefix"));
+    }
+
+    @Test
+    void testReaperDeletesFinishedSessionsOnly() throws Exception {
+        Path sessions = tempDir.resolve("sessions");
+        SharedFileSystemSessionRegistry reaper = new SharedFileSystemSessionRegistry(sessions, 0);
+        instanceA.createSession("merged");
+        instanceA.removeSession("merged");
+        instanceA.setOutputFilename("merged", "a_merged.pdf");
+        instanceA.removeOutputFilename("merged");
+        instanceA.createSession("never-fetched");
+        instanceA.setOutputFilename("never-fetched", "b_merged.pdf");
+        instanceA.removeSession("never-fetched");
+        instanceA.setOutputFilename("never-fetched", "b_merged.pdf");
+        instanceA.createSession("uploading");
+        Thread.sleep(10);
+
+        new SharedFileSystemSessionRegistry(sessions).reapFinishedSessions();
+        assertTrue(Files.exists(sessions.resolve("merged.lock")), "Recent sessions should be left alone.");
+
+        reaper.reapFinishedSessions();
+        assertFalse(Files.exists(sessions.resolve("merged.lock")));
+        assertFalse(Files.exists(sessions.resolve("never-fetched.lock")));
+        assertNull(instanceB.getOutputFilename("never-fetched"), "Outputs nobody fetched should be discarded.");
+        assertTrue(Files.exists(sessions.resolve("uploading.lock")), "Sessions with inputs should keep their lock file.");
+
+        // a session reaped meanwhile can still be used
+        instanceB.setOutputFilename("merged", "c_merged.pdf");
+        assertEquals("c_merged.pdf", instanceA.getOutputFilename("merged"));
+    }
+
+    @Test
+    void testConcurrentAppendsFromBothInstancesAreNotLost() throws Exception {
+        instanceA.createSession("prefix");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            SharedFileSystemSessionRegistry registry = i % 2 == 0 ? instanceA : instanceB;
+            Path file = tempDir.resolve("f" + i + ".pdf");
+            futures.add(executor.submit(() -> registry.addFile("prefix", file, 1)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Set<Path> stored = new HashSet<>(instanceB.getFiles("prefix"));
+        assertEquals(200, stored.size(), "Every append should be recorded exactly once.");
+        assertEquals(200, instanceA.getTotalBytes("prefix"));
+    }
+
+    @Test
+    void testStorageServicesShareSessions() throws Exception {
+        // Upload through one instance and check the other one sees the file to merge
+        Path storage = tempDir.resolve("storage");
+        LocalStorageService serviceA = new LocalStorageService(storage, new MergeAdmissionController(), instanceA);
+        LocalStorageService serviceB = new LocalStorageService(storage, new MergeAdmissionController(), instanceB);
+        serviceA.init();
+
+        serviceA.storePDF(new MockMultipartFile("files", "f1.pdf", MediaType.APPLICATION_PDF_VALUE, "c1".getBytes()), "prefix");
+
+        assertEquals(1, serviceB.numberOfFilesToMerge("prefix"));
+        assertTrue(Files.exists(serviceB.getFilesToMerge("prefix").get(0)));
+    }
+}
@@ -0,0 +1,140 @@
+package org.alexismp.pdfmerger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+// What a client sees of streamed merges that go wrong once the response is under way, over a real connection
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "pdfmerger.stream.timeout=1s")
+class StreamedMergeTests {
+
+    private static final int SENT_BEFORE_FAILURE = 100_000;
+    private static final String BOUNDARY = "test-boundary";
+
+    @LocalServerPort
+    int port;
+
+    @MockBean
+    private StorageService storageService;
+
+    @Autowired
+    private RequestTimelines requestTimelines;
+
+    @BeforeEach
+    void setUp() {
+        when(storageService.numberOfFilesToMerge(anyString())).thenReturn(1);
+        when(storageService.getMergedFilename(anyString())).thenReturn("merged.pdf");
+    }
+
+    @Test
+    void testFailureAfterFirstBytesCutsTheResponse() throws Exception {
+        doAnswer(invocation -> {
+            OutputStream out = invocation.getArgument(1);
+            out.write(new byte[SENT_BEFORE_FAILURE]);
+            out.flush();
+            throw new IOException("Merging process exited with error code : 1");
+        }).when(storageService).streamMergedPDF(anyString(), any());
+
+        HttpURLConnection connection = postStreamedMerge();
+
+        assertEquals(200, connection.getResponseCode(), "The status is sent with the first bytes.");
+        assertThrows(IOException.class, () -> readAll(connection.getInputStream()),
+                "The body should not end cleanly, a truncated document must not look complete.");
+    }
+
+    @Test
+    void testStreamTakingLongerThanTheTimeoutIsCut() throws Exception {
+        CompletableFuture<Exception> stopped = new CompletableFuture<>();
+        doAnswer(invocation -> {
+            OutputStream out = invocation.getArgument(1);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    out.write(new byte[1024]);
+                    out.flush();
+                    Thread.sleep(100); // as followOutput does while pdfunite works
+                }
+            } catch (IOException | InterruptedException e) {
+                stopped.complete(e);
+                throw e;
+            }
+            return null;
+        }).when(storageService).streamMergedPDF(anyString(), any());
+
+        HttpURLConnection connection = postStreamedMerge();
+
+        assertEquals(200, connection.getResponseCode());
+        assertThrows(IOException.class, () -> readAll(connection.getInputStream()));
+        assertNotNull(stopped.get(5, TimeUnit.SECONDS), "The merge should be stopped once its response is cut.");
+    }
+
+    @Test
+    void testMergePhasesAreSentInTrailer() throws Exception {
+        doAnswer(invocation -> {
+            long start = System.nanoTime();
+            ((OutputStream) invocation.getArgument(1)).write("%PDF-1.4 merged".getBytes(StandardCharsets.US_ASCII));
+            requestTimelines.record(invocation.getArgument(0), "pdfunite", start);
+            return null;
+        }).when(storageService).streamMergedPDF(anyString(), any());
+
+        // HttpURLConnection doesn't expose trailers, read the raw chunked response
+        String response;
+        try (Socket socket = new Socket("localhost", port)) {
+            String body = multipartBody();
+            socket.getOutputStream().write(("POST /pdfmerger?stream=true HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\nContent-Length: " + body.length()
+                    + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+            response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+        }
+
+        String head = response.substring(0, response.indexOf("\r\n\r\n"));
+        String trailer = response.substring(response.lastIndexOf("\r\n0\r\n") + 5);
+        assertTrue(head.contains("Trailer: Server-Timing"), head);
+        assertTrue(head.matches("(?s).*Server-Timing: upload;dur=[0-9.]+, queue;dur=[0-9.]+, total;dur=[0-9.]+\r\n.*"), head);
+        assertTrue(trailer.matches("Server-Timing: pdfunite;dur=[0-9.]+, total;dur=[0-9.]+\r\n\r\n"),
+                "The trailer should carry the phases of the merge: " + trailer);
+    }
+
+    private static String multipartBody() {
+        return "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\"a.pdf\"\r\n"
+                + "Content-Type: application/pdf\r\n\r\n%PDF-1.4\r\n--" + BOUNDARY + "--\r\n";
+    }
+
+    private HttpURLConnection postStreamedMerge() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/pdfmerger?stream=true").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(multipartBody().getBytes(StandardCharsets.US_ASCII));
+        }
+        return connection;
+    }
+
+    private static long readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            for (int read; (read = stream.read(buffer)) >= 0; ) {
+                total += read;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.alexismp.pdfmerger;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds small but well-formed PDF documents for tests and benchmarks
+final class TestPdfs {
+
+    private TestPdfs() {
+    }
+
+    /**
+     * Returns a PDF with the given number of pages, each page carrying a content stream
+     * of roughly paddingBytesPerPage bytes so that file sizes can be controlled.
+     */
+    static byte[] withPages(int pages, int paddingBytesPerPage) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<>();
+        write(out, "%PDF-1.4\n");
+
+        // objects 1 and 2 are the catalog and the page tree, then a page and its content per page
+        StringBuilder kids = new StringBuilder();
+        for (int i = 0; i < pages; i++) {
+            kids.append(3 + 2 * i).append(" 0 R ");
+        }
+        offsets.add(out.size());
+        write(out, "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+        offsets.add(out.size());
+        write(out, "2 0 obj\n<< /Type /Pages /Kids [" + kids + "] /Count " + pages + " >>\nendobj\n");
+
+        for (int i = 0; i < pages; i++) {
+            int pageObj = 3 + 2 * i;
+            StringBuilder content = new StringBuilder("BT /F1 24 Tf 72 720 Td (Page " + (i + 1) + ") Tj ET\n");
+            while (content.length() < paddingBytesPerPage) {
+                content.append("% padding to simulate a heavy page\n");
+            }
+            offsets.add(out.size());
+            write(out, pageObj + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] /Contents "
+                    + (pageObj + 1) + " 0 R /Resources << /Font << /F1 << /Type /Font /Subtype /Type1 /BaseFont /Helvetica >> >> >> >>\nendobj\n");
+            offsets.add(out.size());
+            write(out, (pageObj + 1) + " 0 obj\n<< /Length " + content.length() + " >>\nstream\n" + content + "endstream\nendobj\n");
+        }
+
+        int xref = out.size();
+        StringBuilder table = new StringBuilder("xref\n0 " + (offsets.size() + 1) + "\n0000000000 65535 f \n");
+        for (int offset : offsets) {
+            table.append(String.format("%010d 00000 n \n", offset));
+        }
+        table.append("trailer\n<< /Size ").append(offsets.size() + 1).append(" /Root 1 0 R >>\n");
+        table.append("startxref\n").append(xref).append("\n%%EOF\n");
+        write(out, table.toString());
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+    }
+}